@@ -65,19 +65,13 @@ public class MainActivity extends Activity {
         phone = findViewById(R.id.phone);
         wetBg = findViewById(R.id.wet_bg);
         
-        //Set up water detection
+        //Set up water detection, events arrive on the UI thread
         waterDetector = new WaterDetector();
         waterDetector.setWaterEventListener(new WaterEventListener() {
 
 			@Override
-			public void onWaterEvent(final boolean isSubmerged) {
-				phone.post(new Runnable() {
-					@Override
-					public void run() {
-						setSubmerged(isSubmerged);
-					}
-				});
-				
+			public void onWaterEvent(boolean isSubmerged) {
+				setSubmerged(isSubmerged);
 			}
         });
     }
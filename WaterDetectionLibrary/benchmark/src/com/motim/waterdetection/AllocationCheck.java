@@ -0,0 +1,150 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * AllocationCheck runs the detection loop of WaterDetector on a synthetic signal and checks that it allocates
+ * nothing per frame once it is warmed up, so an always-on detector never makes the host app collect garbage.
+ * The bytes are counted on the detection thread from inside the audio source, around MEASURED_FRAMES frames
+ * that follow WARMUP_FRAMES frames of warm-up. Exits with status 1 if any were allocated.
+ * 
+ * Needs a VM that counts the bytes allocated per thread (com.sun.management.ThreadMXBean) and a class path
+ * on which the android.media.AudioTrack and android.os.Process calls of WaterDetector work, plus the host
+ * build of the native library (jni/host):
+ *   java -Djava.library.path=jni/host -cp <classes> com.motim.waterdetection.AllocationCheck
+ */
+public class AllocationCheck {
+	private static final int WARMUP_FRAMES = 1000;
+	private static final int MEASURED_FRAMES = 5000;
+	
+	//com.sun.management.ThreadMXBean is only available on HotSpot based VMs
+	private static Method allocatedBytesMethod;
+	static {
+		try {
+			allocatedBytesMethod = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+		} catch (Exception e) {
+			allocatedBytesMethod = null;
+		}
+	}
+	
+	/**
+	 * Passes the frames of a synthetic source to the detector and counts the bytes allocated on its thread
+	 */
+	private static class CountingSource implements AudioSource {
+		private final AudioSource source;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private int frames = 0;
+		private long startBytes;
+		//Bytes allocated by reading the counter itself
+		private long counterBytes;
+		private long bytes = -1;
+		
+		CountingSource(AudioSource source) {
+			this.source = source;
+		}
+		
+		@Override
+		public boolean start() {
+			return source.start();
+		}
+		
+		@Override
+		public int read(ByteBuffer buffer, int sizeInBytes) {
+			if (frames == WARMUP_FRAMES) {
+				long first = allocatedBytes();
+				startBytes = allocatedBytes();
+				counterBytes = startBytes - first;
+			}
+			else if (frames == WARMUP_FRAMES + MEASURED_FRAMES) {
+				bytes = allocatedBytes() - startBytes - counterBytes;
+				done.countDown();
+				return END_OF_STREAM;
+			}
+			frames++;
+			return source.read(buffer, sizeInBytes);
+		}
+		
+		@Override
+		public void stop() {
+			source.stop();
+		}
+		
+		@Override
+		public void release() {
+			source.release();
+		}
+		
+		@Override
+		public int getSampleRate() {
+			return source.getSampleRate();
+		}
+	}
+	
+	public static void main(String[] args) throws InterruptedException {
+		if (allocatedBytesMethod == null) {
+			System.out.println("This VM does not count the bytes allocated per thread");
+			System.exit(2);
+		}
+		
+		//Overlapping windows, so the loop classifies often
+		DetectorConfig config = new DetectorConfig.Builder(DeviceProfileRegistry.getDefault().getFallback())
+				.setWindowFrames(40, 10).build();
+		SyntheticAudioSource synthetic = new SyntheticAudioSource(config.getSampleRate(), -1, 1);
+		synthetic.setRealtime(false);
+		CountingSource source = new CountingSource(synthetic);
+		
+		WaterDetector detector = new WaterDetector(config);
+		detector.onResume(source, null);
+		source.done.await();
+		detector.onPause();
+		detector.onDestroy();
+		
+		long decisions = detector.getMetrics().snapshot().decisions;
+		System.out.println(String.format("%d frames after %d frames of warm-up, %d decisions in total, %d bytes allocated (%.2f per frame)",
+				MEASURED_FRAMES, WARMUP_FRAMES, decisions, source.bytes, (double)source.bytes / MEASURED_FRAMES));
+		System.exit(source.bytes == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * Bytes allocated by the current thread, or a negative value if the VM cannot tell
+	 */
+	private static long allocatedBytes() {
+		try {
+			return (Long)allocatedBytesMethod.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PipelineBenchmark measures every stage of the detection pipeline as called from Java,
+ * reporting time and allocated bytes per frame and the real-time factor.
+ * Compare with jni/benchmark/PipelineBenchmark to see the JNI overhead.
+ * Also checks that the fixed-point feature engine makes the same decisions as the FFT engine on the recordings.
+ * 
+ * Build against the library sources and android.jar, and run on a desktop JVM with the host
+ * build of the native library (jni/host):
+ *   java -Djava.library.path=jni/host -cp <classes> com.motim.waterdetection.PipelineBenchmark [recording.wav ...]
+ * Recordings must be 16 bit stereo at 44.1 kHz, a synthetic signal is used when none are given.
+ */
+public class PipelineBenchmark {
+	private static final int SAMPLE_RATE = 44100;
+	private static final int FRAME_BYTES = DetectionEngine.FRAME_SAMPLES * 4;
+	private static final double FRAME_NS = 1e9 * DetectionEngine.FRAME_SAMPLES / SAMPLE_RATE;
+	private static final long MIN_TIME_NS = 1000000000L;
+	
+	/**
+	 * One benchmarked operation
+	 */
+	private interface Stage {
+		void run();
+	}
+	
+	private final List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+	private final Decision decision = new Decision();
+	//The cost doesn't depend on the weights, any built in profile will do
+	private final DetectorConfig config = new DetectorConfig.Builder(DeviceProfileRegistry.getDefault().getFallback())
+			.setWindowFrames(80, 80).build();
+	private final FloatBuffer amplitudes = ByteBuffer.allocateDirect(2 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	private final float[] record1 = new float[DetectionEngine.FRAME_SAMPLES];
+	private final float[] record2 = new float[DetectionEngine.FRAME_SAMPLES];
+	private final short[] shorts = new short[DetectionEngine.FRAME_SAMPLES * 2];
+	private int next = 0;
+	private volatile Object sink;
+	
+	//com.sun.management.ThreadMXBean is only available on HotSpot based VMs
+	private static Method allocatedBytesMethod;
+	static {
+		try {
+			allocatedBytesMethod = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+		} catch (Exception e) {
+			allocatedBytesMethod = null;
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		PipelineBenchmark benchmark = new PipelineBenchmark();
+		if (args.length == 0) {
+			benchmark.load(new SyntheticAudioSource(SAMPLE_RATE, 10000, 1));
+			System.out.println("Synthetic recording, " + benchmark.frames.size() + " frames");
+		}
+		for (String path : args) {
+			benchmark.load(new ReplayAudioSource(new FileInputStream(path)));
+			System.out.println("Recording " + path + ", " + benchmark.frames.size() + " frames in total");
+		}
+		benchmark.compareDecisions();
+		benchmark.run();
+	}
+	
+	/**
+	 * Read all audio of a source into frames held in memory
+	 */
+	private void load(AudioSource source) {
+		source.start();
+		for (;;) {
+			ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_BYTES).order(ByteOrder.nativeOrder());
+			int bytesRead = source.read(frame, FRAME_BYTES);
+			if (bytesRead == AudioSource.END_OF_STREAM) {
+				break;
+			}
+			if (bytesRead == FRAME_BYTES) {
+				frames.add(frame);
+			}
+		}
+		source.stop();
+		source.release();
+	}
+	
+	private ByteBuffer nextFrame() {
+		ByteBuffer frame = frames.get(next);
+		next = (next + 1) % frames.size();
+		return frame;
+	}
+	
+	/**
+	 * Classify all frames with the FFT and the fixed-point feature engines and report how often they agree
+	 */
+	private void compareDecisions() {
+		List<Boolean> reference = new ArrayList<Boolean>();
+		List<Float> referenceMargins = new ArrayList<Float>();
+		decide(WaterDetector.FEATURE_ENGINE_FFT, reference, referenceMargins);
+		List<Boolean> fixed = new ArrayList<Boolean>();
+		List<Float> fixedMargins = new ArrayList<Float>();
+		decide(WaterDetector.FEATURE_ENGINE_FIXED_POINT, fixed, fixedMargins);
+		
+		int agreeing = 0;
+		float maxDifference = 0;
+		for (int i = 0; i < reference.size(); i++) {
+			if (reference.get(i).equals(fixed.get(i))) {
+				agreeing++;
+			}
+			if (!Float.isNaN(referenceMargins.get(i))) {
+				maxDifference = Math.max(maxDifference, Math.abs(referenceMargins.get(i) - fixedMargins.get(i)));
+			}
+		}
+		System.out.println(String.format("Fixed point vs FFT: %d of %d decisions agree, max margin difference %.5f",
+				agreeing, reference.size(), maxDifference));
+	}
+	
+	/**
+	 * Classify every loaded frame once with a new engine
+	 */
+	private void decide(int featureEngine, List<Boolean> decisions, List<Float> margins) {
+		DetectionEngine engine = new DetectionEngine(config);
+		engine.setFeatureEngine(featureEngine);
+		amplitudes.put(0, 0.f);
+		amplitudes.put(1, 0.f);
+		for (ByteBuffer frame : frames) {
+			if (engine.processFrame(frame, FRAME_BYTES / 2, amplitudes)) {
+				decisions.add(engine.classify(amplitudes.get(0), amplitudes.get(1), decision.values));
+				margins.add(decision.getMargin());
+				amplitudes.put(0, 0.f);
+				amplitudes.put(1, 0.f);
+			}
+		}
+		engine.release();
+	}
+	
+	private void run() {
+		System.out.println();
+		System.out.println(String.format("%-40s %12s %12s %12s", "Stage", "ns/op", "bytes/op", "real-time"));
+		
+		measure("Tone synthesis (first detector)", new Stage() {
+			@Override
+			public void run() {
+				sink = ProbeTone.generate(8192 * 5, SAMPLE_RATE, SAMPLE_RATE / 2);
+			}
+		}, false);
+		
+		measure("Cached tone (later detectors)", new Stage() {
+			@Override
+			public void run() {
+				sink = ProbeTone.get(8192 * 5, SAMPLE_RATE, SAMPLE_RATE / 2);
+			}
+		}, false);
+		
+		//The detection loop before processFrame moved deinterleaving to native code, for reference
+		measure("Deinterleave/scale (Java)", new Stage() {
+			@Override
+			public void run() {
+				ByteBuffer frame = nextFrame();
+				frame.asShortBuffer().get(shorts);
+				float tot1 = 0, tot2 = 0;
+				for (int i = 0, j = 0; i < shorts.length; i += 2, j++) {
+					record1[j] = 1000.f * (float)shorts[i];
+					record2[j] = 1000.f * (float)shorts[i+1];
+					tot1 += Math.abs((float)shorts[i]);
+					tot2 += Math.abs((float)shorts[i+1]);
+				}
+				sink = tot1 + tot2 > 0 ? record1 : record2;
+			}
+		}, true);
+		
+		String[] names = { "FFT", "Goertzel", "fixed point" };
+		for (int featureEngine = WaterDetector.FEATURE_ENGINE_FFT; featureEngine <= WaterDetector.FEATURE_ENGINE_FIXED_POINT; featureEngine++) {
+			final DetectionEngine engine = new DetectionEngine(config);
+			engine.setFeatureEngine(featureEngine);
+			String name = names[featureEngine];
+			
+			measure("processFrame via JNI (" + name + ")", new Stage() {
+				@Override
+				public void run() {
+					if (engine.processFrame(nextFrame(), FRAME_BYTES / 2, amplitudes)) {
+						amplitudes.put(0, 0.f);
+						amplitudes.put(1, 0.f);
+					}
+				}
+			}, true);
+			
+			measure("End to end (" + name + ")", new Stage() {
+				@Override
+				public void run() {
+					if (engine.processFrame(nextFrame(), FRAME_BYTES / 2, amplitudes)) {
+						sink = engine.classify(amplitudes.get(0), amplitudes.get(1), decision.values);
+						amplitudes.put(0, 0.f);
+						amplitudes.put(1, 0.f);
+					}
+				}
+			}, true);
+			
+			if (featureEngine == WaterDetector.FEATURE_ENGINE_FFT) {
+				measure("isUnderWater via JNI (per decision)", new Stage() {
+					@Override
+					public void run() {
+						sink = engine.isUnderWater(100.f, 100.f);
+					}
+				}, false);
+				
+				measure("classify via JNI (per decision)", new Stage() {
+					@Override
+					public void run() {
+						sink = engine.classify(100.f, 100.f, decision.values);
+					}
+				}, false);
+			}
+			engine.release();
+		}
+	}
+	
+	/**
+	 * Run a stage until MIN_TIME_NS has passed, after a warm-up of the same length, and print the results
+	 * @param perFrame True if the stage processes one frame, to report the real-time factor
+	 */
+	private void measure(String name, Stage stage, boolean perFrame) {
+		long iterations = 0;
+		long start = System.nanoTime();
+		while (System.nanoTime() - start < MIN_TIME_NS) {
+			stage.run();
+			iterations++;
+		}
+		
+		long bytesBefore = allocatedBytes();
+		start = System.nanoTime();
+		for (long i = 0; i < iterations; i++) {
+			stage.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		long bytes = allocatedBytes() - bytesBefore;
+		
+		double ns = (double)elapsed / iterations;
+		String allocation = bytesBefore < 0 ? "n/a" : String.format("%.1f", (double)bytes / iterations);
+		String realtime = perFrame ? String.format("%.0fx", FRAME_NS / ns) : "";
+		System.out.println(String.format("%-40s %12.1f %12s %12s", name, ns, allocation, realtime));
+	}
+	
+	/**
+	 * Bytes allocated by the current thread, or a negative value if the VM cannot tell
+	 */
+	private static long allocatedBytes() {
+		if (allocatedBytesMethod == null) {
+			return -1;
+		}
+		try {
+			return (Long)allocatedBytesMethod.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
@@ -14,12 +14,22 @@
 #
 LOCAL_PATH := $(call my-dir)
 
+# SIMD kernels, built with NEON on armeabi-v7a where they are only used if the CPU supports it
+KERNEL_SRC_FILES := Kernels.cpp
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+    KERNEL_SRC_FILES += KernelsSimd.cpp.neon
+else
+    KERNEL_SRC_FILES += KernelsSimd.cpp
+endif
+
 include $(CLEAR_VARS)
 
 LOCAL_MODULE    := WaterDetection
-LOCAL_SRC_FILES := WaterDetection.cpp FFT.cpp
+LOCAL_SRC_FILES := WaterDetection.cpp NativeAudio.cpp DetectionEngine.cpp FFT.cpp Goertzel.cpp FixedPoint.cpp $(KERNEL_SRC_FILES)
 
-LOCAL_CFLAGS := -Wall
+LOCAL_CFLAGS := -Wall -O3
+LOCAL_ARM_MODE := arm
+LOCAL_STATIC_LIBRARIES := cpufeatures
 
 # for native audio
 LOCAL_LDLIBS    += -lOpenSLES
@@ -29,3 +39,31 @@ LOCAL_LDLIBS    += -llog
 LOCAL_LDLIBS    += -landroid
 
 include $(BUILD_SHARED_LIBRARY)
+
+# native micro-benchmark comparing the feature engines, run through adb shell
+include $(CLEAR_VARS)
+
+LOCAL_MODULE    := FeatureBenchmark
+LOCAL_SRC_FILES := benchmark/FeatureBenchmark.cpp FFT.cpp Goertzel.cpp FixedPoint.cpp $(KERNEL_SRC_FILES)
+
+LOCAL_CFLAGS := -Wall -O3 -fPIE
+LOCAL_LDFLAGS := -fPIE -pie
+LOCAL_ARM_MODE := arm
+LOCAL_STATIC_LIBRARIES := cpufeatures
+
+include $(BUILD_EXECUTABLE)
+
+# native benchmark of every pipeline stage, for comparison with the Java benchmark
+include $(CLEAR_VARS)
+
+LOCAL_MODULE    := PipelineBenchmark
+LOCAL_SRC_FILES := benchmark/PipelineBenchmark.cpp DetectionEngine.cpp FFT.cpp Goertzel.cpp FixedPoint.cpp $(KERNEL_SRC_FILES)
+
+LOCAL_CFLAGS := -Wall -O3 -fPIE
+LOCAL_LDFLAGS := -fPIE -pie
+LOCAL_ARM_MODE := arm
+LOCAL_STATIC_LIBRARIES := cpufeatures
+
+include $(BUILD_EXECUTABLE)
+
+$(call import-module,android/cpufeatures)
@@ -0,0 +1,517 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+#include "DetectionEngine.h"
+#include "Kernels.h"
+#include <string.h>
+#include <math.h>
+
+static const int numfeatures = FEATURE_COUNT;
+static const int firstacc = 2;
+
+#define MAX(a,b) (((a)>(b))?(a):(b))
+#define MIN(a,b) (((a)<(b))?(a):(b))
+
+static void resetStats(FeatureStats * stats)
+{
+	stats->count = 0;
+	stats->mean = 0;
+	stats->m2 = 0;
+	stats->max = 0;
+}
+
+static void resetFixedStats(FixedFeatureStats * stats)
+{
+	stats->count = 0;
+	stats->reference = 0;
+	stats->sum = 0;
+	stats->sumSquares = 0;
+	stats->max = 0;
+}
+
+// Exact integer update with a single fixed-point feature value
+static void addFixedValue(FixedFeatureStats * stats, int val)
+{
+	if(stats->count++ == 0)
+		stats->reference = val;
+	int64_t delta = val - stats->reference;
+	stats->sum += delta;
+	stats->sumSquares += delta * delta;
+	stats->max = MAX(val, stats->max);
+}
+
+// Welford update with a single feature value
+static void addValue(FeatureStats * stats, float val)
+{
+	stats->count++;
+	float delta = val - stats->mean;
+	stats->mean += delta / (float)stats->count;
+	stats->m2 += delta * (val - stats->mean);
+	stats->max = MAX(val, stats->max);
+}
+
+DetectionEngine::DetectionEngine(int _frames, int _hop, int _n, int _bins, int _channels, const float* classifier)
+{
+	n = _n;
+	w = _bins;
+	frames = _frames;
+	hop = _hop;
+	channels = _channels;
+	k = classifier[CLASSIFIER_AIR_BIAS_SCALE];
+	bias1 = classifier[CLASSIFIER_AIR_BIAS];
+	bias2 = classifier[CLASSIFIER_UW_BIAS];
+	memcpy(weights1, classifier + CLASSIFIER_AIR_WEIGHTS, sizeof(weights1));
+	memcpy(weights2, classifier + CLASSIFIER_UW_WEIGHTS, sizeof(weights2));
+	adaptationRate = 0.f;
+	adaptationMinMargin = 0.f;
+	featureEngine = FEATURE_ENGINE_FFT;
+	airScore = uwScore = margin = NAN;
+
+	state = -1;
+	numSpectra = 0;
+
+	fft = new FFT(n);
+	goertzel = new Goertzel(n, w);
+	fixedFeatures = new FixedPointFeatures(n, w);
+	data1 = new float[n];
+	data2 = new float[n];
+	bins = new float[2 * w];
+	fixedBins = new int[w];
+	resetStats(&stats1);
+	resetStats(&stats2);
+	resetFixedStats(&fixedStats1);
+	resetFixedStats(&fixedStats2);
+
+	// non-overlapping windows are summarised on the fly, sliding ones need the history
+	if(hop < frames)
+	{
+		ring1 = new float[w*frames];
+		ring2 = new float[w*frames];
+		fixedRing1 = new int[w*frames];
+		fixedRing2 = new int[w*frames];
+	}
+	else
+	{
+		ring1 = NULL;
+		ring2 = NULL;
+		fixedRing1 = NULL;
+		fixedRing2 = NULL;
+	}
+	ringPos = 0;
+	ringFilled = 0;
+
+	first = new float [numfeatures]; for(int i=0; i<numfeatures; i++) first[i] = 0.f;
+	mean1 = mean2 = max1 = max2 = var1 = var2 = 0.f;
+	amp1 = amp2 = 0.f;
+}
+
+DetectionEngine::~DetectionEngine()
+{
+	delete fft;
+	delete goertzel;
+	delete fixedFeatures;
+	delete [] data1;
+	delete [] data2;
+	delete [] bins;
+	delete [] fixedBins;
+	delete [] ring1;
+	delete [] ring2;
+	delete [] fixedRing1;
+	delete [] fixedRing2;
+
+	delete [] first;
+}
+
+void DetectionEngine::setFeatureEngine(int engine)
+{
+	// the fixed-point engine keeps its own statistics, which can't be mixed with the float ones
+	bool restart = (engine == FEATURE_ENGINE_FIXED_POINT) != (featureEngine == FEATURE_ENGINE_FIXED_POINT);
+	featureEngine = engine;
+	if(restart)
+		restartWindow();
+}
+
+void DetectionEngine::restartWindow()
+{
+	resetStats(&stats1);
+	resetStats(&stats2);
+	resetFixedStats(&fixedStats1);
+	resetFixedStats(&fixedStats2);
+	numSpectra = 0;
+	ringPos = 0;
+	ringFilled = 0;
+}
+
+// Log normalise the feature bins of one spectrum, keeping running statistics or the sliding window history
+void DetectionEngine::addSpectrum(FeatureStats * stats, float * ring, const float * spectrum)
+{
+	for(int j=0; j<w; j++)
+	{
+		float val = logf(spectrum[j] + 0.01f) * 10.f;
+
+		if(ring != NULL)
+			ring[ringPos * w + j] = val;
+		else
+			addValue(stats, val);
+	}
+}
+
+// The same for the fixed-point feature values
+void DetectionEngine::addFixedSpectrum(FixedFeatureStats * stats, int * ring, const int * spectrum)
+{
+	for(int j=0; j<w; j++)
+	{
+		if(ring != NULL)
+			ring[ringPos * w + j] = spectrum[j];
+		else
+			addFixedValue(stats, spectrum[j]);
+	}
+}
+
+// Recompute the statistics over the whole sliding window
+void DetectionEngine::addWindow(FeatureStats * stats, const float * ring)
+{
+	for(int i=0; i<w*frames; i++)
+		addValue(stats, ring[i]);
+}
+
+void DetectionEngine::addFixedWindow(FixedFeatureStats * stats, const int * ring)
+{
+	for(int i=0; i<w*frames; i++)
+		addFixedValue(stats, ring[i]);
+}
+
+void DetectionEngine::getSpectrogramValues(int spectrum)
+{
+	FeatureStats * stats = NULL;
+
+	spectrum == 1 ? stats = &stats1 : stats = &stats2;
+
+	float mean, max, var;
+	if(featureEngine == FEATURE_ENGINE_FIXED_POINT)
+	{
+		// once per window, so the division and conversion can be left to floats
+		FixedFeatureStats * fixedStats = spectrum == 1 ? &fixedStats1 : &fixedStats2;
+		float count = (float)MAX(fixedStats->count, 1);
+		float sum = (float)fixedStats->sum;
+		mean = (fixedStats->reference + sum / count) / FIXED_FEATURE_ONE;
+		max = (float)fixedStats->max / FIXED_FEATURE_ONE;
+		var = ((float)fixedStats->sumSquares - sum * sum / count) / count / ((float)FIXED_FEATURE_ONE * FIXED_FEATURE_ONE);
+		resetFixedStats(fixedStats);
+	}
+	else
+	{
+		mean = stats->mean;
+		max = stats->max;
+		var = stats->count > 0 ? stats->m2 / (float)stats->count : 0.f;
+	}
+
+	resetStats(stats);
+
+	if(spectrum == 1)
+	{
+		mean1 = mean;
+		max1 = max;
+		var1 = var;
+	}
+	else
+	{
+		mean2 = mean;
+		max2 = max;
+		var2 = var;
+	}
+}
+
+void DetectionEngine::setBaselineAdaptation(float rate, float minMargin)
+{
+	adaptationRate = rate;
+	adaptationMinMargin = minMargin;
+}
+
+void DetectionEngine::setBaseline(const float* baseline)
+{
+	for(int i=0; i<numfeatures; i++)
+	{
+		first[i] = baseline[i];
+		if(first[i] == 0.f) first[i] = 0.01f;
+	}
+
+	// the next window increments past the warm-up
+	state = MAX(state, firstacc);
+}
+
+void DetectionEngine::resetBaseline()
+{
+	for(int i=0; i<numfeatures; i++)
+		first[i] = 0.f;
+
+	// the next window is the first of the warm-up
+	state = 0;
+}
+
+bool DetectionEngine::isUnderWater(float _amp1, float _amp2)
+{
+	amp1 = _amp1;
+	amp2 = _amp2;
+	airScore = uwScore = margin = NAN;
+
+	if(!state) return false;
+	else if(state <= firstacc)
+	{
+		first[0] += mean1;
+		first[1] += max1;
+		first[2] += var1;
+
+		first[3] += mean2;
+		first[4] += max2;
+		first[5] += var2;
+
+		first[6] += amp1;
+		first[7] += amp2;
+
+		if(state == firstacc)
+			for(int i=0; i<numfeatures; i++)
+			{
+				first[i] /= (float)firstacc;
+				if(first[i] == 0.f) first[i] = 0.01f;
+			}
+
+		return false;
+	}
+	else
+	{
+		float input[numfeatures];
+		input[0] = mean1;
+		input[1] = max1;
+		input[2] = var1;
+
+		input[3] = mean2;
+		input[4] = max2;
+		input[5] = var2;
+
+		input[6] = amp1;
+		input[7] = amp2;
+
+		float air_value = bias1 * k;
+		float uw_value = bias2;
+
+		for(int i=0; i< numfeatures; i++)
+		{
+			air_value += weights1[i] * (input[i]/first[i]);
+			uw_value  += weights2[i] * (input[i]/first[i]);
+		}
+
+		air_value += weights1[numfeatures] * ((amp2 - amp1)/((amp2 + amp1)/2.f));
+		uw_value  += weights2[numfeatures] * ((amp2 - amp1)/((amp2 + amp1)/2.f));
+
+		airScore = air_value;
+		uwScore = uw_value;
+		margin = uw_value - air_value;
+
+		// exponential moving average of the features, only fed with windows that are surely in air
+		if(adaptationRate > 0.f && margin <= -adaptationMinMargin)
+			for(int i=0; i<numfeatures; i++)
+			{
+				first[i] += adaptationRate * (input[i] - first[i]);
+				if(first[i] == 0.f) first[i] = 0.01f;
+			}
+
+		return uw_value  > air_value;
+	}
+}
+
+void DetectionEngine::setFeatures(const float* features)
+{
+	mean1 = features[0];
+	max1 = features[1];
+	var1 = features[2];
+
+	mean2 = features[3];
+	max2 = features[4];
+	var2 = features[5];
+
+	state++;
+	numSpectra = 0;
+}
+
+void DetectionEngine::getDecision(float* out)
+{
+	float * features = out + DECISION_FEATURES;
+	features[0] = mean1;
+	features[1] = max1;
+	features[2] = var1;
+
+	features[3] = mean2;
+	features[4] = max2;
+	features[5] = var2;
+
+	features[6] = amp1;
+	features[7] = amp2;
+
+	for(int i=0; i<numfeatures; i++)
+		out[DECISION_BASELINE + i] = first[i];
+
+	out[DECISION_AIR_SCORE] = airScore;
+	out[DECISION_UW_SCORE] = uwScore;
+	out[DECISION_MARGIN] = margin;
+}
+
+// Spectra of the deinterleaved samples with a float engine
+void DetectionEngine::addSpectra()
+{
+	// only the first w bins of each spectrum are used by the features
+	if(featureEngine == FEATURE_ENGINE_GOERTZEL)
+	{
+		goertzel->power(data1, bins);
+		addSpectrum(&stats1, ring1, bins);
+		goertzel->power(data2, bins);
+		addSpectrum(&stats2, ring2, bins);
+	}
+	else
+	{
+		// both channels in one pass
+		fft->fftrStereo(data1, data2, bins, bins + w, 0, w);
+		addSpectrum(&stats1, ring1, bins);
+		addSpectrum(&stats2, ring2, bins + w);
+	}
+}
+
+// Amplitudes and spectra straight from the interleaved samples, in integers
+void DetectionEngine::addFixedSpectra(const short* samples, int shortsRead, float* amp)
+{
+	int count = shortsRead / 2;
+	// the first microphone is on the right in the swapped layout
+	const short * mic1 = channels == CHANNELS_STEREO_SWAPPED ? samples + 1 : samples;
+	const short * mic2 = channels == CHANNELS_STEREO_SWAPPED ? samples : samples + 1;
+
+	int32_t totMic1 = 0;
+	int32_t totMic2 = 0;
+	for(int j = 0; j < count; j++)
+	{
+		totMic1 += mic1[2 * j] < 0 ? -mic1[2 * j] : mic1[2 * j];
+		totMic2 += mic2[2 * j] < 0 ? -mic2[2 * j] : mic2[2 * j];
+	}
+
+	// averaged as by deinterleave, the amplitudes are handed back as floats
+	amp[0] = (amp[0] + (float)totMic1) / (float)shortsRead;
+	amp[1] = (amp[1] + (float)totMic2) / (float)shortsRead;
+
+	fixedFeatures->logPower(mic1, count, fixedBins);
+	addFixedSpectrum(&fixedStats1, fixedRing1, fixedBins);
+	fixedFeatures->logPower(mic2, count, fixedBins);
+	addFixedSpectrum(&fixedStats2, fixedRing2, fixedBins);
+}
+
+// Count the spectrum just added, completing a window every hop spectra
+bool DetectionEngine::buildSpectrogram()
+{
+	if(ring1 != NULL)
+	{
+		ringPos = (ringPos + 1) % frames;
+		ringFilled = MIN(ringFilled + 1, frames);
+
+		// sliding window, decide every hop spectra once the window is full
+		if(++numSpectra < hop || ringFilled < frames)
+			return false;
+
+		if(featureEngine == FEATURE_ENGINE_FIXED_POINT)
+		{
+			addFixedWindow(&fixedStats1, fixedRing1);
+			addFixedWindow(&fixedStats2, fixedRing2);
+		}
+		else
+		{
+			addWindow(&stats1, ring1);
+			addWindow(&stats2, ring2);
+		}
+
+		getSpectrogramValues(1);
+		getSpectrogramValues(2);
+
+		state++;
+		numSpectra = 0;
+		return true;
+	}
+	else if(++numSpectra == frames)
+	{
+		getSpectrogramValues(1);
+		getSpectrogramValues(2);
+
+		state++;
+		numSpectra = 0;
+		return true;
+	}
+	else
+		return false;
+}
+
+void DetectionEngine::deinterleave(const short* samples, int shortsRead, int n, float* data1, float* data2, float* amp)
+{
+	// Separate and scale both channels, accumulating absolute amplitudes on the way
+	int count = shortsRead / 2;
+	getKernels()->deinterleave(samples, count, data1, data2, amp);
+
+	// Zero pad a short read
+	for(int j = count; j < n; j++)
+	{
+		data1[j] = 0.f;
+		data2[j] = 0.f;
+	}
+
+	amp[0] = amp[0] / (float)shortsRead;
+	amp[1] = amp[1] / (float)shortsRead;
+}
+
+bool DetectionEngine::processFrame(const short* samples, int shortsRead, float* amp)
+{
+	if(shortsRead <= 0)
+		return false;
+
+	shortsRead = MIN(shortsRead, 2 * n);
+
+	if(featureEngine == FEATURE_ENGINE_FIXED_POINT)
+	{
+		addFixedSpectra(samples, shortsRead, amp);
+		return buildSpectrogram();
+	}
+
+	if(channels == CHANNELS_STEREO_SWAPPED)
+	{
+		// the first microphone is on the right
+		float swapped[2] = { amp[1], amp[0] };
+		deinterleave(samples, shortsRead, n, data2, data1, swapped);
+		amp[0] = swapped[1];
+		amp[1] = swapped[0];
+	}
+	else
+		deinterleave(samples, shortsRead, n, data1, data2, amp);
+
+	addSpectra();
+	return buildSpectrogram();
+}
@@ -0,0 +1,226 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+#ifndef DETECTIONENGINE_H_
+#define DETECTIONENGINE_H_
+
+#include "FFT.h"
+#include "Goertzel.h"
+#include "FixedPoint.h"
+
+// Feature engines, 0: full FFT, 1: Goertzel on the used bins only, 2: integer DFT on the used bins only
+#define FEATURE_ENGINE_FFT 0
+#define FEATURE_ENGINE_GOERTZEL 1
+#define FEATURE_ENGINE_FIXED_POINT 2
+
+// Channel layouts of the recording, which channel holds the first microphone
+#define CHANNELS_STEREO 0
+#define CHANNELS_STEREO_SWAPPED 1
+
+#define FEATURE_COUNT 8			// number of features, which is also the length of the baseline
+
+// Layout of the values written by getDecision
+#define DECISION_FEATURES 0		// mean, max, variance of each microphone, then both amplitudes
+#define DECISION_BASELINE 8		// the features of the first windows, which the features are normalised by
+#define DECISION_AIR_SCORE 16
+#define DECISION_UW_SCORE 17
+#define DECISION_MARGIN 18		// underwater minus in air score
+#define DECISION_SIZE 19
+
+// Layout of the classifier weights passed to the constructor, loaded from the device profile
+#define CLASSIFIER_AIR_BIAS_SCALE 0		// air bias scale-factor. Below one for less false negatives and above one for less false positives.
+#define CLASSIFIER_AIR_BIAS 1
+#define CLASSIFIER_UW_BIAS 2
+#define CLASSIFIER_AIR_WEIGHTS 3		// one weight per feature, then one for the relative amplitude difference
+#define CLASSIFIER_UW_WEIGHTS 12
+#define CLASSIFIER_WEIGHTS 9
+#define CLASSIFIER_SIZE 21
+
+// Running statistics of the log normalised feature bins of one microphone, updated as each spectrum arrives
+struct FeatureStats
+{
+	int count;
+	float mean;
+	float m2;		// sum of squared differences from the mean
+	float max;
+};
+
+// Running sums of the fixed-point feature values of one microphone, kept relative to the first value
+// of the window so the squares stay small. Only turned into floats once per window.
+struct FixedFeatureStats
+{
+	int count;
+	int reference;
+	int64_t sum;
+	int64_t sumSquares;
+	int max;
+};
+
+// One instance of the water detection pipeline: spectra, features and classifier state.
+// Instances are independent of each other, but a single instance is not thread safe.
+
+class DetectionEngine
+{
+	// Functions
+public:
+
+	~DetectionEngine();
+
+	/**
+	 * Constructs an engine deciding every _hop spectra of _n samples per microphone over windows of _frames spectra,
+	 * using the lowest _bins bins of each spectrum and the classifier weights laid out as described by the
+	 * CLASSIFIER_ defines. _n is a power of two, _channels one of the CHANNELS_ layouts.
+	 */
+	DetectionEngine(int _frames, int _hop, int _n, int _bins, int _channels, const float* classifier);
+
+	/**
+	 * Select FEATURE_ENGINE_FFT, FEATURE_ENGINE_GOERTZEL or FEATURE_ENGINE_FIXED_POINT.
+	 * The fixed-point engine takes the samples, amplitudes and window statistics through integer arithmetic,
+	 * only the classifier of each window uses floats. Switching to or from it restarts the window.
+	 */
+	void setFeatureEngine(int engine);
+
+	/**
+	 * Separate, scale and transform interleaved stereo samples, updating the running average amplitudes in amp.
+	 * Returns true if the detector can be polled for underwater state.
+	 */
+	bool processFrame(const short* samples, int shortsRead, float* amp);
+
+	/**
+	 * Discard the spectra of the current window so the next window only holds audio added from now on.
+	 * The baseline and classifier state are kept. Used when recording resumes after a pause.
+	 */
+	void restartWindow();
+
+	/**
+	 * Separate and scale the first shortsRead interleaved stereo samples into n samples per channel, zero padding
+	 * a short read. Adds the absolute sample values to the running amplitudes in amp and averages them.
+	 */
+	static void deinterleave(const short* samples, int shortsRead, int n, float* data1, float* data2, float* amp);
+
+	/**
+	 * Track the baseline after the warm-up: every decision with a margin of at most -minMargin, confidently in air,
+	 * moves the baseline towards the features of the window by rate. A rate of 0 keeps the warm-up baseline.
+	 */
+	void setBaselineAdaptation(float rate, float minMargin);
+
+	/**
+	 * Replace the baseline with FEATURE_COUNT values saved from an earlier decision, ending the warm-up.
+	 * The next completed window is classified.
+	 */
+	void setBaseline(const float* baseline);
+
+	/**
+	 * Discard the baseline and repeat the warm-up from the next window.
+	 */
+	void resetBaseline();
+
+	/**
+	 * Classify the last window, true if the device is probably underwater.
+	 */
+	bool isUnderWater(float amp1, float amp2);
+
+	/**
+	 * Take the spectral features of a window computed elsewhere, laid out like the first FEATURE_COUNT values of
+	 * getDecision, as if the window had just been completed. isUnderWater then classifies them.
+	 * Used to replay recorded feature traces with different classifier weights.
+	 */
+	void setFeatures(const float* features);
+
+	/**
+	 * Copy the features, baseline and scores of the last classification into out[DECISION_SIZE].
+	 * Scores and margin are NaN and the baseline incomplete until the baseline is known.
+	 */
+	void getDecision(float* out);
+
+private:
+
+	void addSpectra();
+	void addFixedSpectra(const short* samples, int shortsRead, float* amp);
+	bool buildSpectrogram();
+	void addSpectrum(FeatureStats * stats, float * ring, const float * spectrum);
+	void addFixedSpectrum(FixedFeatureStats * stats, int * ring, const int * spectrum);
+	void addWindow(FeatureStats * stats, const float * ring);
+	void addFixedWindow(FixedFeatureStats * stats, const int * ring);
+	void getSpectrogramValues(int spectrum);
+
+	// Data
+public:
+
+	int n;							// length of the FFT
+	int w;							// number of feature bins per spectrum
+	int frames;						// window length in spectra
+	int hop;						// spectra between decisions
+	int channels;					// channel layout of the recording
+
+private:
+
+	int state;
+	int numSpectra;					// spectra added since the last decision
+	int featureEngine;
+	float airScore;
+	float uwScore;
+	float margin;
+
+	FFT * fft;
+	Goertzel * goertzel;
+	FixedPointFeatures * fixedFeatures;
+	float * data1;					// per-channel scratch buffers for the fft
+	float * data2;
+	float * bins;					// feature bins of the current spectrum of each channel, 2 * w values
+	int * fixedBins;				// log normalised feature bins of the fixed-point engine
+
+	// Ring of the log normalised feature bins of the last frames spectra, only needed when windows overlap
+	float * ring1;
+	float * ring2;
+	int * fixedRing1;
+	int * fixedRing2;
+	int ringPos;
+	int ringFilled;
+
+	FeatureStats stats1, stats2;
+	FixedFeatureStats fixedStats1, fixedStats2;
+
+	// classifier weights of the device profile
+	float k;
+	float bias1, bias2;
+	float weights1[CLASSIFIER_WEIGHTS];
+	float weights2[CLASSIFIER_WEIGHTS];
+
+	// baseline tracking while confidently in air
+	float adaptationRate;
+	float adaptationMinMargin;
+
+	//features
+	float * first;
+	float mean1,mean2, max1,max2, var1,var2;
+	float amp1, amp2;				// amplitudes of the last classification
+};
+
+#endif /* DETECTIONENGINE_H_ */
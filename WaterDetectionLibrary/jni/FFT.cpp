@@ -29,7 +29,6 @@
 
 #include "FFT.h"
 #include <math.h>
-#include <string.h>
 
 #define M_PI 3.14159265358979323846
 
@@ -43,7 +42,7 @@ unsigned int _log2( unsigned int x )
 
 /**
  * Setup a new FFT object.
- * Note - N must be a power of 2!
+ * Note - N must be a power of 2, at least 4!
  */
 FFT::FFT(int _n)
 {
@@ -51,144 +50,135 @@ FFT::FFT(int _n)
 	n = _n;
 	log2n = (int)_log2((unsigned int) n);
 	validSpectrumLength = (n / 2) + 1;
+	half = n / 2;
 
-	// precompute tables
-	COS_LOOKUP_TABLE = new float[n/2];
-	SIN_LOOKUP_TABLE = new float[n/2];
+	// precompute tables, contiguous per stage so the butterflies read them sequentially
+	twiddleCos = new float[half];
+	twiddleSin = new float[half];
+	twiddleCos[0] = 1.0f;
+	twiddleSin[0] = 0.0f;
 
-	for(int i = 0; i < n/2; i++)
+	for(int h = 1; h < half; h <<= 1)
 	{
-		COS_LOOKUP_TABLE[i] = cosf(i * (2 * M_PI / n));
-		SIN_LOOKUP_TABLE[i] = -sinf(i * (2 * M_PI / n));
+		for(int j = 0; j < h; j++)
+		{
+			twiddleCos[h + j] = cosf(j * (M_PI / h));
+			twiddleSin[h + j] = -sinf(j * (M_PI / h));
+		}
 	}
 
-	imag 	= new float[n];
-	zeroPad = new float[n];	// used to zero this.imag without creating new array every time
+	splitCos = new float[half + 1];
+	splitSin = new float[half + 1];
 
-	for(int i = 0; i < n; i++)
-		zeroPad[i] = 0.0f;
-}
+	for(int k = 0; k <= half; k++)
+	{
+		splitCos[k] = cosf(k * (2 * M_PI / n));
+		splitSin[k] = sinf(k * (2 * M_PI / n));
+	}
 
-FFT::~FFT()
-{
-	delete [] COS_LOOKUP_TABLE;
-	delete [] SIN_LOOKUP_TABLE;
-	delete [] imag;
-	delete [] zeroPad;
-}
+	// The bit reversal only depends on n, find it once
+	bitReverse = new int[half];
 
-/**
- * Do interlace decomposition on a real input signal array.
- */
-void FFT::bitSwapInPlace(float* inputReal)
-{
-	// Pre-computations
 	int bin = 0;
-	int halfLength = n >> 1;
-
-	// Temp variables
-	int cursor;
-	float temp;
-
-	// Interlace decomposition
-	for (int i=1; i < n-1; i++)
+	bitReverse[0] = 0;
+	for (int i=1; i < half; i++)
 	{
-		cursor = halfLength;
+		int cursor = half >> 1;
 
-		while ( cursor <= bin)
+		while ( cursor <= bin && cursor > 0)
 		{
 			bin 	-= cursor;
 			cursor >>= 1;		// half
 		}
 
 		bin += cursor;
-
-		if (i < bin)
-		{
-			// swapping i with bin
-			temp 				= inputReal[i];
-			inputReal[i] 		= inputReal[bin];
-			inputReal[bin] 	= temp;
-		}
+		bitReverse[i] = bin;
 	}
 
+	real = new float[n];
+	imag = new float[n];
+
+	kernels = getKernels();
+}
+
+FFT::~FFT()
+{
+	delete [] twiddleCos;
+	delete [] twiddleSin;
+	delete [] splitCos;
+	delete [] splitSin;
+	delete [] bitReverse;
+	delete [] real;
+	delete [] imag;
+}
+
+void FFT::setKernels(const Kernels* _kernels)
+{
+	kernels = _kernels;
 }
 
 /**
- * Real-valued fft: pad out complex entries with 0, calculate magnitudes within limits, return as input array.
- * input - the real-valued signal data
+ * Real-valued fft: pack the even samples as real and the odd samples as imaginary parts of an n/2 point
+ * complex signal, transform it and separate the spectra of both halves into the spectrum of the input.
+ * input - the real-valued signal data, n samples
+ * output - receives the squared magnitudes of bins lowBin..highBin-1
  * lowBin - the lowest bin we'll be using
- * highBin - the highest bin we'll be using (window size)
+ * highBin - the highest bin we'll be using, at most validSpectrumLength
  */
-void FFT::fftr(float* input, int lowBin, int highBin)
+void FFT::fftr(const float* input, float* output, int lowBin, int highBin)
 {
-
-	int 	n1,
-			lengthFactor=1,
-			x;
-
-	float 	cosx,
-			sinx,
-			temp1,
-			temp2;
-
-	// complex number padding
-	memcpy(imag, zeroPad, n*sizeof(float));
-
-	bitSwapInPlace(input);
-
-	// Do the FFT calculation:
-	// Outer loop: Loop thru all the 1-point signals (log2n of them)
-	for (int i = 0; i < log2n; i++)
+	// Interlace decomposition and bit reversal in one pass
+	for (int i = 0; i < half; i++)
 	{
-		n1 = lengthFactor;
-		lengthFactor <<= 1; // double it
-		x = 0;
-
-		// Middle loop: Loop thru the individual frequency spectra for this stage
-		for (int j = 0; j < n1; j++)
-		{
-			sinx = SIN_LOOKUP_TABLE[x];
-			cosx = COS_LOOKUP_TABLE[x];
-			x +=  1 << (log2n-i-1);
-
-			// Inner Loop: Calculate points in each spectra using the FFT butterfly
-			for (int k = j; k < n; k += lengthFactor)
-			{
-				// calculate half-way factors
-				temp1 = cosx*input[k+n1] - sinx*imag[k+n1];
-				temp2 = sinx*input[k+n1] + cosx*imag[k+n1];
-
-				// modify arrays
-				input[k+n1] = input[k] - temp1;
-				imag[k+n1] 	= imag[k] - temp2;
-				input[k] 	= input[k] + temp1;
-				imag[k] 	= imag[k] + temp2;
-
-			}
-		}
+		real[bitReverse[i]] = input[2 * i];
+		imag[bitReverse[i]] = input[2 * i + 1];
 	}
 
+	// Do the FFT calculation: log2n-1 stages of butterflies
+	kernels->butterflies(real, imag, half, twiddleCos, twiddleSin);
 
-	// testing
-	for(int i = 0; i < lowBin; i++)
-	{
-		input[i] = 0;
-	}
-	for(int i = highBin; i < n; i++)
-	{
-		input[i] = 0;
-	}
+	split(real, imag, output, lowBin, highBin);
+}
+
+/**
+ * Real-valued ffts of two signals: both are packed like in fftr, the second into the upper half of the buffers,
+ * and the butterflies of both transforms share their twiddle factors.
+ */
+void FFT::fftrStereo(const float* input1, const float* input2, float* output1, float* output2, int lowBin, int highBin)
+{
+	float * real2 = real + half;
+	float * imag2 = imag + half;
 
-	// done! Now find magnitudes...
-	for(int i = lowBin; i < highBin; i++)
+	for (int i = 0; i < half; i++)
 	{
-		// pass magnitudes back out as input array
-		input[i] = input[i]*input[i] + imag[i]*imag[i]; //hypotf(input[i], imag[i]);
+		int j = bitReverse[i];
+		real[j] = input1[2 * i];
+		imag[j] = input1[2 * i + 1];
+		real2[j] = input2[2 * i];
+		imag2[j] = input2[2 * i + 1];
 	}
 
+	kernels->stereoButterflies(real, imag, half, twiddleCos, twiddleSin);
+
+	split(real, imag, output1, lowBin, highBin);
+	split(real2, imag2, output2, lowBin, highBin);
 }
 
+void FFT::split(const float* zr, const float* zi, float* output, int lowBin, int highBin)
+{
+	// Separate: X[k] = E[k] + W^k O[k] with E[k] = (Z[k] + Z*[n/2-k]) / 2 and O[k] = -i (Z[k] - Z*[n/2-k]) / 2
+	for (int k = lowBin; k < highBin; k++)
+	{
+		int mirror = (half - k) & (half - 1);	// Z[n/2] wraps around to Z[0]
 
+		float evenReal = 0.5f * (zr[k & (half - 1)] + zr[mirror]);
+		float evenImag = 0.5f * (zi[k & (half - 1)] - zi[mirror]);
+		float oddReal  = 0.5f * (zi[k & (half - 1)] + zi[mirror]);
+		float oddImag  = 0.5f * (zr[mirror] - zr[k & (half - 1)]);
 
+		float re = evenReal + splitCos[k] * oddReal + splitSin[k] * oddImag;
+		float im = evenImag + splitCos[k] * oddImag - splitSin[k] * oddReal;
 
+		output[k] = re * re + im * im;
+	}
+}
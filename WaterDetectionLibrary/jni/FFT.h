@@ -30,6 +30,8 @@
 #ifndef FFT_H_
 #define FFT_H_
 
+#include "Kernels.h"
+
 // An FFT implementation for real value input
 
 class FFT
@@ -45,17 +47,30 @@ public:
 	FFT(int _n);
 
 	/**
-	 * Take a real valued fft within the given limiting bins.
-	 * Reuses the input array, overwriting it with the magnitudes of the FFT spectrum.
+	 * Take a real valued fft, writing the squared magnitudes of the bins lowBin..highBin-1 into output.
+	 * highBin is at most validSpectrumLength. The input is not modified.
+	 * Runs an N/2 point complex FFT on the even and odd samples and separates the two halves afterwards.
+	 */
+	void fftr(const float* input, float* output, int lowBin, int highBin);
+
+	/**
+	 * Take the real valued ffts of two signals, for example both microphones of a frame, writing the squared
+	 * magnitudes of bins lowBin..highBin-1 into output1 and output2. Gives the same spectra as two calls to fftr,
+	 * but both transforms go through the bit reversal and the butterflies together.
+	 */
+	void fftrStereo(const float* input1, const float* input2, float* output1, float* output2, int lowBin, int highBin);
+
+	/**
+	 * Select the kernels doing the butterflies, by default the fastest for this CPU.
 	 */
-	void fftr(float* input, int lowBin, int highBin);
+	void setKernels(const Kernels* _kernels);
 
 private:
 
 	/**
-	 * Does bit swapping - the first stage of the FFT cycle.
+	 * Separate the spectrum of the real input from the complex FFT in zr and zi.
 	 */
-	void bitSwapInPlace(float* inputReal);
+	void split(const float* zr, const float* zi, float* output, int lowBin, int highBin);
 
 	// Data
 public:
@@ -65,13 +80,25 @@ public:
 
 private:
 	int log2n;						// partway calculation - log2(n)
+	int half;						// length of the complex FFT, n/2
+
+	// Twiddle factors of the complex FFT, precalculated. The stage combining halves of length h uses entries h..2h-1.
+	float* twiddleCos;
+	float* twiddleSin;
+
+	// Twiddle factors for separating the spectrum of the real input, entries 0..n/2, precalculated.
+	float* splitCos;
+	float* splitSin;
+
+	// Bit reversed position of each complex sample, precalculated.
+	int* bitReverse;
 
-	// Lookup tables for sin & cos, precalculated.
-	float* COS_LOOKUP_TABLE;
-	float* SIN_LOOKUP_TABLE;
+	// The even (real) and odd (imaginary) input samples, transformed in place.
+	// fftrStereo stores the second signal in the upper half.
+	float* real;
+	float* imag;
 
-	float* imag;	// imaginary value padding
-	float* zeroPad;
+	const Kernels* kernels;
 
 };
 
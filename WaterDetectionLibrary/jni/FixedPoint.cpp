@@ -0,0 +1,153 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+#include "FixedPoint.h"
+#include <math.h>
+
+#define M_PI 3.14159265358979323846
+
+#define LOG2_TABLE_BITS 8
+#define LOG2_TABLE_SIZE (1 << LOG2_TABLE_BITS)
+
+// 10 * ln(2) in Q24
+static const int64_t TEN_LN2 = 116290800;
+// 10 * ln(2^62 / 10^6) in FIXED_FEATURE_SHIFT bits, subtracted from 10 * ln(re^2 + im^2): the Q31 twiddles add
+// 31 bits to each sum, while the float engines scale the samples by 1000
+static const int32_t SCALE_OFFSET = 1194378;
+// 10 * ln(0.01) in FIXED_FEATURE_SHIFT bits, the value of an empty bin
+static const int32_t EMPTY_BIN = -188628;
+
+// Position of the highest set bit, x must not be zero
+static inline int highestBit(uint64_t x)
+{
+	int bit = 0;
+	if(x >> 32) { x >>= 32; bit += 32; }
+	if(x >> 16) { x >>= 16; bit += 16; }
+	if(x >> 8) { x >>= 8; bit += 8; }
+	if(x >> 4) { x >>= 4; bit += 4; }
+	if(x >> 2) { x >>= 2; bit += 2; }
+	if(x >> 1) { bit += 1; }
+	return bit;
+}
+
+/**
+ * Setup a new fixed-point feature object.
+ * Note - N must be a power of 2.
+ */
+FixedPointFeatures::FixedPointFeatures(int _n, int _numBins)
+{
+	n = _n;
+	numBins = _numBins;
+
+	// Q31 can't hold 1.0, the largest value is 1 - 2^-31
+	cosTable = new int32_t[n];
+	for(int i = 0; i < n; i++)
+	{
+		double c = cos(i * (2 * M_PI / n)) * 2147483648.0;
+		cosTable[i] = c >= 2147483647.0 ? 2147483647 : (int32_t)floor(c + 0.5);
+	}
+
+	log2Table = new int32_t[LOG2_TABLE_SIZE + 1];
+	for(int i = 0; i <= LOG2_TABLE_SIZE; i++)
+		log2Table[i] = (int32_t)floor(log((double)(LOG2_TABLE_SIZE + i) / LOG2_TABLE_SIZE) / log(2.0) * 65536.0 + 0.5);
+}
+
+FixedPointFeatures::~FixedPointFeatures()
+{
+	delete [] cosTable;
+	delete [] log2Table;
+}
+
+/**
+ * Direct DFT of the feature bins: N multiply-accumulates per bin and part, which for the few low bins
+ * used costs about the same as the FFT and keeps every product exact in 64 bits.
+ */
+void FixedPointFeatures::logPower(const short* samples, int frames, int* output)
+{
+	int mask = n - 1;
+	int quarter = n / 4;
+	int k = 0;
+
+	// The DC bin is a plain sum, scaled like the other bins
+	if(numBins > 0)
+	{
+		int32_t sum = 0;
+		for(int i = 0; i < frames; i++)
+			sum += samples[2 * i];
+
+		output[k++] = logMagnitude((int64_t)sum * 2147483647, 0);
+	}
+
+	for(; k < numBins; k++)
+	{
+		int64_t re = 0, im = 0;
+		int index = 0;
+
+		for(int i = 0; i < frames; i++)
+		{
+			re += (int64_t)samples[2 * i] * cosTable[index];
+			im += (int64_t)samples[2 * i] * cosTable[(index - quarter) & mask];
+			index = (index + k) & mask;
+		}
+
+		output[k] = logMagnitude(re, im);
+	}
+}
+
+/**
+ * Normalise the sums to 31 bits, square them and take log2 of the 63 bit power from the table,
+ * interpolating linearly between its entries.
+ */
+int FixedPointFeatures::logMagnitude(int64_t re, int64_t im)
+{
+	uint64_t a = re < 0 ? -(uint64_t)re : (uint64_t)re;
+	uint64_t b = im < 0 ? -(uint64_t)im : (uint64_t)im;
+	if((a | b) == 0)
+		return EMPTY_BIN;
+
+	int shift = highestBit(a | b) - 30;
+	if(shift < 0)
+		shift = 0;
+	a >>= shift;
+	b >>= shift;
+	uint64_t power = a * a + b * b;
+
+	// log2(power) = exponent + log2(mantissa), the mantissa taken as 32 bits in [2^31, 2^32)
+	int exponent = highestBit(power);
+	uint32_t mantissa = (uint32_t)(exponent >= 31 ? power >> (exponent - 31) : power << (31 - exponent));
+	int index = (mantissa >> (31 - LOG2_TABLE_BITS)) & (LOG2_TABLE_SIZE - 1);
+	uint32_t remainder = mantissa & ((1u << (31 - LOG2_TABLE_BITS)) - 1);
+	int32_t fraction = log2Table[index]
+			+ (int32_t)(((int64_t)(log2Table[index + 1] - log2Table[index]) * remainder) >> (31 - LOG2_TABLE_BITS));
+
+	// Q16 log2 of the power before the normalisation
+	int64_t log2Power = ((int64_t)(exponent + 2 * shift) << 16) + fraction;
+
+	// Q16 * Q24 down to FIXED_FEATURE_SHIFT bits
+	return (int)((log2Power * TEN_LN2) >> (40 - FIXED_FEATURE_SHIFT)) - SCALE_OFFSET;
+}
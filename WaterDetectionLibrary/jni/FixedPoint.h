@@ -0,0 +1,79 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+#ifndef FIXEDPOINT_H_
+#define FIXEDPOINT_H_
+
+#include <stdint.h>
+
+// Fraction bits of the fixed-point log normalised feature values
+#define FIXED_FEATURE_SHIFT 12
+#define FIXED_FEATURE_ONE (1 << FIXED_FEATURE_SHIFT)
+
+// Log power of a handful of low bins computed with integer arithmetic only, for CPUs without an FPU.
+// The samples are Q15, the twiddle factors Q31 and the sums 64 bit, the log comes from a table.
+
+class FixedPointFeatures
+{
+	// Functions
+public:
+
+	~FixedPointFeatures();
+
+	/**
+	 * Constructs for a transform length N and the number of bins to compute. Precalculates the tables.
+	 */
+	FixedPointFeatures(int _n, int _numBins);
+
+	/**
+	 * Calculate the log normalised feature values of bins 0 to numBins-1 of one channel of interleaved stereo
+	 * samples, zero padded to N. Matches logf(|X[k]|^2 + 0.01f) * 10.f of the float engines, which scale the
+	 * samples by 1000, in FIXED_FEATURE_SHIFT fraction bits. output must hold numBins values.
+	 * samples - the first sample of the channel, the next one is two shorts further
+	 * frames - number of samples of the channel, at most N
+	 */
+	void logPower(const short* samples, int frames, int* output);
+
+	/**
+	 * 10 * ln(re^2 + im^2) of a bin summed with Q31 twiddles, on the scale of the float engines.
+	 */
+	int logMagnitude(int64_t re, int64_t im);
+
+	// Data
+public:
+
+	int n;							// length of the transform
+	int numBins;					// number of bins calculated
+
+private:
+
+	int32_t* cosTable;				// Q31 cos(2*pi*i/N), the sines are read a quarter turn later
+	int32_t* log2Table;				// Q16 log2(1 + i/LOG2_TABLE_SIZE), one entry more for the interpolation
+};
+
+#endif /* FIXEDPOINT_H_ */
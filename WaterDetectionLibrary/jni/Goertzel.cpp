@@ -0,0 +1,107 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+#include "Goertzel.h"
+#include <math.h>
+
+#define M_PI 3.14159265358979323846
+
+/**
+ * Setup a new Goertzel object.
+ */
+Goertzel::Goertzel(int _n, int _numBins)
+{
+	n = _n;
+	numBins = _numBins;
+
+	coeff = new float[numBins];
+
+	for(int k = 0; k < numBins; k++)
+		coeff[k] = 2.f * cosf(k * (2 * M_PI / n));
+}
+
+Goertzel::~Goertzel()
+{
+	delete [] coeff;
+}
+
+/**
+ * Goertzel recursion per bin: s[i] = x[i] + c*s[i-1] - s[i-2],
+ * |X[k]|^2 = s1^2 + s2^2 - c*s1*s2 after the last sample.
+ * Bins are processed two at a time so the independent recursions overlap.
+ * input - the real-valued signal data
+ * output - squared magnitudes for bins 0..numBins-1
+ */
+void Goertzel::power(const float* input, float* output)
+{
+	int k = 0;
+
+	// The DC bin is a plain sum, the recursion would integrate twice and lose precision
+	if(numBins > 0)
+	{
+		float sum = 0.f;
+		for(int i = 0; i < n; i++)
+			sum += input[i];
+
+		output[k++] = sum * sum;
+	}
+
+	for(; k + 1 < numBins; k += 2)
+	{
+		float ca = coeff[k],	cb = coeff[k + 1];
+		float a0, a1 = 0.f, a2 = 0.f;
+		float b0, b1 = 0.f, b2 = 0.f;
+
+		for(int i = 0; i < n; i++)
+		{
+			a0 = input[i] + ca * a1 - a2;
+			b0 = input[i] + cb * b1 - b2;
+			a2 = a1;	a1 = a0;
+			b2 = b1;	b1 = b0;
+		}
+
+		output[k] 		= a1 * a1 + a2 * a2 - ca * a1 * a2;
+		output[k + 1] 	= b1 * b1 + b2 * b2 - cb * b1 * b2;
+	}
+
+	if(k < numBins)
+	{
+		float c = coeff[k];
+		float s0, s1 = 0.f, s2 = 0.f;
+
+		for(int i = 0; i < n; i++)
+		{
+			s0 = input[i] + c * s1 - s2;
+			s2 = s1;
+			s1 = s0;
+		}
+
+		output[k] = s1 * s1 + s2 * s2 - c * s1 * s2;
+	}
+}
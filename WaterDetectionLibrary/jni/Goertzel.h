@@ -0,0 +1,65 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+#ifndef GOERTZEL_H_
+#define GOERTZEL_H_
+
+// Power spectrum of a handful of low bins, computed without a full FFT
+
+class Goertzel
+{
+	// Functions
+public:
+
+	~Goertzel();
+
+	/**
+	 * Constructs for a transform length N and the number of bins to compute. Precalculates coefficients.
+	 */
+	Goertzel(int _n, int _numBins);
+
+	/**
+	 * Calculate the squared magnitudes of bins 0 to numBins-1 of a real valued signal of length N.
+	 * The input is left untouched, output must hold numBins values.
+	 * Matches the bins produced by FFT::fftr.
+	 */
+	void power(const float* input, float* output);
+
+	// Data
+public:
+
+	int n;							// length of the transform
+	int numBins;					// number of bins calculated
+
+private:
+
+	float* coeff;					// 2*cos(2*pi*k/N) for each bin
+};
+
+#endif /* GOERTZEL_H_ */
@@ -0,0 +1,149 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+#include "Kernels.h"
+#include <math.h>
+
+#if defined(__ANDROID__) && defined(__arm__)
+#include <cpu-features.h>
+#endif
+
+void butterflyStage(float* re, float* im, int n, int h, const float* twCos, const float* twSin)
+{
+	for(int k = 0; k < n; k += 2 * h)
+	{
+		for(int j = 0; j < h; j++)
+		{
+			float cosx = twCos[h + j];
+			float sinx = twSin[h + j];
+			int a = k + j;
+			int b = a + h;
+
+			float temp1 = cosx * re[b] - sinx * im[b];
+			float temp2 = sinx * re[b] + cosx * im[b];
+
+			re[b] = re[a] - temp1;
+			im[b] = im[a] - temp2;
+			re[a] = re[a] + temp1;
+			im[a] = im[a] + temp2;
+		}
+	}
+}
+
+void stereoButterflyStage(float* re, float* im, int n, int h, const float* twCos, const float* twSin)
+{
+	float * re2 = re + n;
+	float * im2 = im + n;
+
+	for(int k = 0; k < n; k += 2 * h)
+	{
+		for(int j = 0; j < h; j++)
+		{
+			float cosx = twCos[h + j];
+			float sinx = twSin[h + j];
+			int a = k + j;
+			int b = a + h;
+
+			float temp1 = cosx * re[b] - sinx * im[b];
+			float temp2 = sinx * re[b] + cosx * im[b];
+			float temp3 = cosx * re2[b] - sinx * im2[b];
+			float temp4 = sinx * re2[b] + cosx * im2[b];
+
+			re[b] = re[a] - temp1;
+			im[b] = im[a] - temp2;
+			re[a] = re[a] + temp1;
+			im[a] = im[a] + temp2;
+
+			re2[b] = re2[a] - temp3;
+			im2[b] = im2[a] - temp4;
+			re2[a] = re2[a] + temp3;
+			im2[a] = im2[a] + temp4;
+		}
+	}
+}
+
+static void butterfliesScalar(float* re, float* im, int n, const float* twCos, const float* twSin)
+{
+	for(int h = 1; h < n; h <<= 1)
+		butterflyStage(re, im, n, h, twCos, twSin);
+}
+
+static void stereoButterfliesScalar(float* re, float* im, int n, const float* twCos, const float* twSin)
+{
+	for(int h = 1; h < n; h <<= 1)
+		stereoButterflyStage(re, im, n, h, twCos, twSin);
+}
+
+static void deinterleaveScalar(const short* samples, int frames, float* data1, float* data2, float* sums)
+{
+	// Exact in integers up to 65535 samples per channel, floats would round beyond 512 full scale samples
+	int totMic1 = 0;
+	int totMic2 = 0;
+
+	for(int j = 0; j < frames; j++)
+	{
+		data1[j] = 1000.f * (float)samples[2 * j];
+		data2[j] = 1000.f * (float)samples[2 * j + 1];
+
+		totMic1 += samples[2 * j] < 0 ? -samples[2 * j] : samples[2 * j];
+		totMic2 += samples[2 * j + 1] < 0 ? -samples[2 * j + 1] : samples[2 * j + 1];
+	}
+
+	sums[0] += (float)totMic1;
+	sums[1] += (float)totMic2;
+}
+
+static const Kernels scalar = { "scalar", butterfliesScalar, stereoButterfliesScalar, deinterleaveScalar };
+
+const Kernels * scalarKernels()
+{
+	return &scalar;
+}
+
+// NEON is optional on ARMv7, SSE2 and ARMv8 NEON are part of the x86, x86_64 and arm64 baselines
+static bool cpuHasSimd()
+{
+#if defined(__ANDROID__) && defined(__arm__)
+	return android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM
+			&& (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON) != 0;
+#else
+	return true;
+#endif
+}
+
+const Kernels * getKernels()
+{
+	// Every thread computes the same answer, so racing on the first call is harmless
+	static const Kernels * selected = NULL;
+
+	if(selected == NULL)
+		selected = (simdKernels() != NULL && cpuHasSimd()) ? simdKernels() : scalarKernels();
+
+	return selected;
+}
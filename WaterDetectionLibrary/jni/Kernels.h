@@ -0,0 +1,86 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+#ifndef KERNELS_H_
+#define KERNELS_H_
+
+// The inner loops of the feature pipeline. Every kernel has a portable scalar version and, where the
+// CPU supports it, a SIMD version (NEON on ARM, SSE on x86). getKernels() picks the set to use at runtime.
+
+struct Kernels
+{
+	const char * name;
+
+	/**
+	 * All radix-2 butterfly stages of an n point complex FFT on bit reversed data, in place.
+	 * The twiddles of the stage combining halves of length h are at twCos[h..2h-1] and twSin[h..2h-1].
+	 */
+	void (*butterflies)(float* re, float* im, int n, const float* twCos, const float* twSin);
+
+	/**
+	 * The butterflies of two n point complex FFTs at once, the second stored at re[n..2n-1] and im[n..2n-1].
+	 * Each twiddle factor is loaded once for both transforms.
+	 */
+	void (*stereoButterflies)(float* re, float* im, int n, const float* twCos, const float* twSin);
+
+	/**
+	 * Separate frames interleaved stereo samples into both channels scaled by 1000,
+	 * adding the absolute sample values of each channel to sums[0] and sums[1]. The values are summed exactly in
+	 * integers, so every implementation returns the same sums.
+	 */
+	void (*deinterleave)(const short* samples, int frames, float* data1, float* data2, float* sums);
+};
+
+/**
+ * The scalar reference kernels, available on every CPU.
+ */
+const Kernels * scalarKernels();
+
+/**
+ * The SIMD kernels, or NULL if the library was built without SIMD support.
+ * Only safe to use if getKernels() also returns them.
+ */
+const Kernels * simdKernels();
+
+/**
+ * The fastest kernels supported by this CPU.
+ */
+const Kernels * getKernels();
+
+/**
+ * One butterfly stage of the scalar FFT, also used by the SIMD kernels for the stages too short to vectorise.
+ */
+void butterflyStage(float* re, float* im, int n, int h, const float* twCos, const float* twSin);
+
+/**
+ * One butterfly stage of two scalar FFTs, the second stored n values after the first.
+ */
+void stereoButterflyStage(float* re, float* im, int n, int h, const float* twCos, const float* twSin);
+
+#endif /* KERNELS_H_ */
@@ -0,0 +1,227 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+// SIMD versions of the kernels, written with GCC vector extensions so one source serves NEON and SSE.
+// On armeabi-v7a this file is built with NEON enabled and only used after a runtime check.
+
+#include "Kernels.h"
+#include <string.h>
+
+#if defined(__SSE2__)
+#include <emmintrin.h>
+#elif defined(__ARM_NEON__) || defined(__ARM_NEON)
+#include <arm_neon.h>
+#endif
+
+#if defined(__ARM_NEON__) || defined(__ARM_NEON) || defined(__SSE2__)
+
+typedef float v4f __attribute__ ((vector_size (16)));
+typedef int v4i __attribute__ ((vector_size (16)));
+
+// Unaligned loads and stores, the caller's arrays are only float aligned
+static inline v4f load(const float* p)
+{
+	v4f v;
+	memcpy(&v, p, sizeof(v));
+	return v;
+}
+
+static inline void store(float* p, v4f v)
+{
+	memcpy(p, &v, sizeof(v));
+}
+
+// Lane by lane conversion, which the vector extensions only offer on recent compilers
+static inline v4f toFloat(v4i v)
+{
+#if defined(__SSE2__)
+	return (v4f)_mm_cvtepi32_ps((__m128i)v);
+#else
+	return (v4f)vcvtq_f32_s32((int32x4_t)v);
+#endif
+}
+
+static inline v4i absolute(v4i v)
+{
+	v4i sign = v >> 31;
+	return (v ^ sign) - sign;
+}
+
+static inline int sum(v4i v)
+{
+	return v[0] + v[1] + v[2] + v[3];
+}
+
+static void butterfliesSimd(float* re, float* im, int n, const float* twCos, const float* twSin)
+{
+	int h = 1;
+
+	// The first two stages have fewer than four butterflies per group
+	for(; h < 4 && h < n; h <<= 1)
+		butterflyStage(re, im, n, h, twCos, twSin);
+
+	for(; h < n; h <<= 1)
+	{
+		for(int k = 0; k < n; k += 2 * h)
+		{
+			float * ar = re + k;
+			float * ai = im + k;
+			float * br = ar + h;
+			float * bi = ai + h;
+
+			for(int j = 0; j < h; j += 4)
+			{
+				v4f cosx = load(twCos + h + j);
+				v4f sinx = load(twSin + h + j);
+				v4f xr = load(br + j);
+				v4f xi = load(bi + j);
+
+				v4f temp1 = cosx * xr - sinx * xi;
+				v4f temp2 = sinx * xr + cosx * xi;
+
+				v4f yr = load(ar + j);
+				v4f yi = load(ai + j);
+
+				store(br + j, yr - temp1);
+				store(bi + j, yi - temp2);
+				store(ar + j, yr + temp1);
+				store(ai + j, yi + temp2);
+			}
+		}
+	}
+}
+
+static void stereoButterfliesSimd(float* re, float* im, int n, const float* twCos, const float* twSin)
+{
+	float * re2 = re + n;
+	float * im2 = im + n;
+	int h = 1;
+
+	for(; h < 4 && h < n; h <<= 1)
+		stereoButterflyStage(re, im, n, h, twCos, twSin);
+
+	for(; h < n; h <<= 1)
+	{
+		for(int k = 0; k < n; k += 2 * h)
+		{
+			float * ar = re + k;
+			float * ai = im + k;
+			float * br = ar + h;
+			float * bi = ai + h;
+			float * ar2 = re2 + k;
+			float * ai2 = im2 + k;
+			float * br2 = ar2 + h;
+			float * bi2 = ai2 + h;
+
+			for(int j = 0; j < h; j += 4)
+			{
+				v4f cosx = load(twCos + h + j);
+				v4f sinx = load(twSin + h + j);
+
+				v4f xr = load(br + j);
+				v4f xi = load(bi + j);
+				v4f temp1 = cosx * xr - sinx * xi;
+				v4f temp2 = sinx * xr + cosx * xi;
+				v4f yr = load(ar + j);
+				v4f yi = load(ai + j);
+				store(br + j, yr - temp1);
+				store(bi + j, yi - temp2);
+				store(ar + j, yr + temp1);
+				store(ai + j, yi + temp2);
+
+				xr = load(br2 + j);
+				xi = load(bi2 + j);
+				temp1 = cosx * xr - sinx * xi;
+				temp2 = sinx * xr + cosx * xi;
+				yr = load(ar2 + j);
+				yi = load(ai2 + j);
+				store(br2 + j, yr - temp1);
+				store(bi2 + j, yi - temp2);
+				store(ar2 + j, yr + temp1);
+				store(ai2 + j, yi + temp2);
+			}
+		}
+	}
+}
+
+static void deinterleaveSimd(const short* samples, int frames, float* data1, float* data2, float* sums)
+{
+	const v4f scale = { 1000.f, 1000.f, 1000.f, 1000.f };
+	v4i tot1 = { 0, 0, 0, 0 };
+	v4i tot2 = { 0, 0, 0, 0 };
+	int j = 0;
+
+	for(; j + 4 <= frames; j += 4)
+	{
+		// One stereo frame per lane, the first channel in the low half on these little endian CPUs.
+		// Shifting sign extends each half to a full lane.
+		v4i pair;
+		memcpy(&pair, samples + 2 * j, sizeof(pair));
+		v4i int1 = (pair << 16) >> 16;
+		v4i int2 = pair >> 16;
+
+		store(data1 + j, scale * toFloat(int1));
+		store(data2 + j, scale * toFloat(int2));
+
+		tot1 += absolute(int1);
+		tot2 += absolute(int2);
+	}
+
+	// Summed in integers like the scalar kernel, which is exact for any frame size used, so both agree
+	int totMic1 = sum(tot1);
+	int totMic2 = sum(tot2);
+
+	for(; j < frames; j++)
+	{
+		data1[j] = 1000.f * (float)samples[2 * j];
+		data2[j] = 1000.f * (float)samples[2 * j + 1];
+
+		totMic1 += samples[2 * j] < 0 ? -samples[2 * j] : samples[2 * j];
+		totMic2 += samples[2 * j + 1] < 0 ? -samples[2 * j + 1] : samples[2 * j + 1];
+	}
+
+	sums[0] += (float)totMic1;
+	sums[1] += (float)totMic2;
+}
+
+static const Kernels simd = { "simd", butterfliesSimd, stereoButterfliesSimd, deinterleaveSimd };
+
+const Kernels * simdKernels()
+{
+	return &simd;
+}
+
+#else
+
+const Kernels * simdKernels()
+{
+	return NULL;
+}
+
+#endif
@@ -0,0 +1,418 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+#include "NativeAudio.h"
+#include <string.h>
+#include <stdint.h>
+#include <android/log.h>
+
+#define LOG_TAG "NativeAudio"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+
+// Detaches callback threads from the VM when OpenSL ES ends them
+static pthread_key_t detachKey;
+static pthread_once_t detachOnce = PTHREAD_ONCE_INIT;
+
+static void detachThread(void * vm)
+{
+	((JavaVM *)vm)->DetachCurrentThread();
+}
+
+static void createDetachKey()
+{
+	pthread_key_create(&detachKey, detachThread);
+}
+
+NativeAudio::NativeAudio(DetectionEngine * _engine, int _sampleRate, const short* _tone, int _toneSamples)
+{
+	engine = _engine;
+	sampleRate = _sampleRate;
+	toneSamples = _toneSamples;
+	tone = new short[toneSamples];
+	memcpy(tone, _tone, toneSamples * sizeof(short));
+
+	frameShorts = 2 * engine->n;
+	recordBuffers = new short[NATIVE_AUDIO_BUFFERS * frameShorts];
+	recordIndex = 0;
+	amp[0] = amp[1] = 0.f;
+
+	reportedState = -1;
+	uwConsecutive = airConsecutive = 0;
+	uwRequired = airRequired = 1;
+
+	pthread_mutex_init(&lock, NULL);
+	running = false;
+	featureEngineRequest = -1;
+
+	engineObject = NULL;
+	engineItf = NULL;
+	outputMix = NULL;
+	player = NULL;
+	playItf = NULL;
+	playerQueue = NULL;
+	recorder = NULL;
+	recordItf = NULL;
+	recorderQueue = NULL;
+
+	vm = NULL;
+	target = NULL;
+	method = NULL;
+}
+
+NativeAudio::~NativeAudio()
+{
+	stop();
+	destroyObjects();
+	pthread_mutex_destroy(&lock);
+	delete [] tone;
+	delete [] recordBuffers;
+}
+
+void NativeAudio::destroyObjects()
+{
+	if(recorder != NULL)
+		(*recorder)->Destroy(recorder);
+	if(player != NULL)
+		(*player)->Destroy(player);
+	if(outputMix != NULL)
+		(*outputMix)->Destroy(outputMix);
+	if(engineObject != NULL)
+		(*engineObject)->Destroy(engineObject);
+	recorder = player = outputMix = engineObject = NULL;
+}
+
+bool NativeAudio::open()
+{
+	SLresult result;
+	SLuint32 milliHz = (SLuint32)sampleRate * 1000;
+
+	result = slCreateEngine(&engineObject, 0, NULL, 0, NULL, NULL);
+	if(result != SL_RESULT_SUCCESS) { engineObject = NULL; return false; }
+	if((*engineObject)->Realize(engineObject, SL_BOOLEAN_FALSE) != SL_RESULT_SUCCESS
+			|| (*engineObject)->GetInterface(engineObject, SL_IID_ENGINE, &engineItf) != SL_RESULT_SUCCESS)
+	{
+		destroyObjects();
+		return false;
+	}
+
+	// tone player, a single buffer re-enqueued as soon as it has played
+	if((*engineItf)->CreateOutputMix(engineItf, &outputMix, 0, NULL, NULL) != SL_RESULT_SUCCESS)
+	{
+		outputMix = NULL;
+		destroyObjects();
+		return false;
+	}
+	if((*outputMix)->Realize(outputMix, SL_BOOLEAN_FALSE) != SL_RESULT_SUCCESS)
+	{
+		destroyObjects();
+		return false;
+	}
+
+	SLDataLocator_AndroidSimpleBufferQueue playerQueueLocator = { SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE, 1 };
+	SLDataFormat_PCM mono = { SL_DATAFORMAT_PCM, 1, milliHz, SL_PCMSAMPLEFORMAT_FIXED_16, SL_PCMSAMPLEFORMAT_FIXED_16,
+			SL_SPEAKER_FRONT_CENTER, SL_BYTEORDER_LITTLEENDIAN };
+	SLDataSource playerSource = { &playerQueueLocator, &mono };
+	SLDataLocator_OutputMix mixLocator = { SL_DATALOCATOR_OUTPUTMIX, outputMix };
+	SLDataSink playerSink = { &mixLocator, NULL };
+	const SLInterfaceID playerIds[] = { SL_IID_ANDROIDSIMPLEBUFFERQUEUE };
+	const SLboolean playerRequired[] = { SL_BOOLEAN_TRUE };
+
+	if((*engineItf)->CreateAudioPlayer(engineItf, &player, &playerSource, &playerSink, 1, playerIds, playerRequired) != SL_RESULT_SUCCESS)
+	{
+		player = NULL;
+		destroyObjects();
+		return false;
+	}
+	if((*player)->Realize(player, SL_BOOLEAN_FALSE) != SL_RESULT_SUCCESS
+			|| (*player)->GetInterface(player, SL_IID_PLAY, &playItf) != SL_RESULT_SUCCESS
+			|| (*player)->GetInterface(player, SL_IID_ANDROIDSIMPLEBUFFERQUEUE, &playerQueue) != SL_RESULT_SUCCESS
+			|| (*playerQueue)->RegisterCallback(playerQueue, playerCallback, this) != SL_RESULT_SUCCESS)
+	{
+		destroyObjects();
+		return false;
+	}
+
+	// stereo recorder, both microphones
+	SLDataLocator_IODevice micLocator = { SL_DATALOCATOR_IODEVICE, SL_IODEVICE_AUDIOINPUT, SL_DEFAULTDEVICEID_AUDIOINPUT, NULL };
+	SLDataSource recorderSource = { &micLocator, NULL };
+	SLDataLocator_AndroidSimpleBufferQueue recorderQueueLocator = { SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE, NATIVE_AUDIO_BUFFERS };
+	SLDataFormat_PCM stereo = { SL_DATAFORMAT_PCM, 2, milliHz, SL_PCMSAMPLEFORMAT_FIXED_16, SL_PCMSAMPLEFORMAT_FIXED_16,
+			SL_SPEAKER_FRONT_LEFT | SL_SPEAKER_FRONT_RIGHT, SL_BYTEORDER_LITTLEENDIAN };
+	SLDataSink recorderSink = { &recorderQueueLocator, &stereo };
+	const SLInterfaceID recorderIds[] = { SL_IID_ANDROIDSIMPLEBUFFERQUEUE, SL_IID_ANDROIDCONFIGURATION };
+	const SLboolean recorderRequired[] = { SL_BOOLEAN_TRUE, SL_BOOLEAN_FALSE };
+
+	if((*engineItf)->CreateAudioRecorder(engineItf, &recorder, &recorderSource, &recorderSink, 2, recorderIds, recorderRequired) != SL_RESULT_SUCCESS)
+	{
+		recorder = NULL;
+		destroyObjects();
+		return false;
+	}
+	// the camcorder source records both microphones, like AudioRecordSource
+	SLAndroidConfigurationItf config;
+	if((*recorder)->GetInterface(recorder, SL_IID_ANDROIDCONFIGURATION, &config) == SL_RESULT_SUCCESS)
+	{
+		SLuint32 preset = SL_ANDROID_RECORDING_PRESET_CAMCORDER;
+		(*config)->SetConfiguration(config, SL_ANDROID_KEY_RECORDING_PRESET, &preset, sizeof(SLuint32));
+	}
+	if((*recorder)->Realize(recorder, SL_BOOLEAN_FALSE) != SL_RESULT_SUCCESS
+			|| (*recorder)->GetInterface(recorder, SL_IID_RECORD, &recordItf) != SL_RESULT_SUCCESS
+			|| (*recorder)->GetInterface(recorder, SL_IID_ANDROIDSIMPLEBUFFERQUEUE, &recorderQueue) != SL_RESULT_SUCCESS
+			|| (*recorderQueue)->RegisterCallback(recorderQueue, recorderCallback, this) != SL_RESULT_SUCCESS)
+	{
+		destroyObjects();
+		return false;
+	}
+
+	return true;
+}
+
+void NativeAudio::setCallback(JavaVM * _vm, jobject _target, jmethodID _method)
+{
+	vm = _vm;
+	target = _target;
+	method = _method;
+}
+
+bool NativeAudio::start(int _uwRequired, int _airRequired)
+{
+	if(recorder == NULL)
+		return false;
+
+	stop();
+
+	pthread_mutex_lock(&lock);
+	uwRequired = _uwRequired;
+	airRequired = _airRequired;
+	reportedState = -1;
+	uwConsecutive = airConsecutive = 0;
+	amp[0] = amp[1] = 0.f;
+	recordIndex = 0;
+
+	(*recorderQueue)->Clear(recorderQueue);
+	(*playerQueue)->Clear(playerQueue);
+	for(int i=0; i<NATIVE_AUDIO_BUFFERS; i++)
+		(*recorderQueue)->Enqueue(recorderQueue, recordBuffers + i * frameShorts, frameShorts * sizeof(short));
+	(*playerQueue)->Enqueue(playerQueue, tone, toneSamples * sizeof(short));
+
+	bool started = (*playItf)->SetPlayState(playItf, SL_PLAYSTATE_PLAYING) == SL_RESULT_SUCCESS
+			&& (*recordItf)->SetRecordState(recordItf, SL_RECORDSTATE_RECORDING) == SL_RESULT_SUCCESS;
+	running = started;
+	pthread_mutex_unlock(&lock);
+
+	if(!started)
+		stop();
+	return started;
+}
+
+void NativeAudio::stop()
+{
+	if(recorder == NULL)
+		return;
+
+	(*recordItf)->SetRecordState(recordItf, SL_RECORDSTATE_STOPPED);
+	(*playItf)->SetPlayState(playItf, SL_PLAYSTATE_STOPPED);
+
+	// waits for a callback still running
+	pthread_mutex_lock(&lock);
+	running = false;
+	applyFeatureEngine();
+	pthread_mutex_unlock(&lock);
+}
+
+void NativeAudio::setFeatureEngine(int featureEngine)
+{
+	pthread_mutex_lock(&lock);
+	featureEngineRequest = featureEngine;
+	if(!running)
+		applyFeatureEngine();
+	pthread_mutex_unlock(&lock);
+}
+
+// With the lock held, between frames
+void NativeAudio::applyFeatureEngine()
+{
+	if(featureEngineRequest >= 0)
+	{
+		engine->setFeatureEngine(featureEngineRequest);
+		featureEngineRequest = -1;
+	}
+}
+
+void NativeAudio::playerCallback(SLAndroidSimpleBufferQueueItf queue, void * context)
+{
+	NativeAudio * audio = (NativeAudio *)context;
+	pthread_mutex_lock(&audio->lock);
+	if(audio->running)
+		(*queue)->Enqueue(queue, audio->tone, audio->toneSamples * sizeof(short));
+	pthread_mutex_unlock(&audio->lock);
+}
+
+void NativeAudio::recorderCallback(SLAndroidSimpleBufferQueueItf queue, void * context)
+{
+	NativeAudio * audio = (NativeAudio *)context;
+	pthread_mutex_lock(&audio->lock);
+	if(audio->running)
+		audio->onRecorded();
+	pthread_mutex_unlock(&audio->lock);
+}
+
+// Buffers complete in the order they were enqueued
+void NativeAudio::onRecorded()
+{
+	short * samples = recordBuffers + recordIndex * frameShorts;
+
+	applyFeatureEngine();
+	if(engine->processFrame(samples, frameShorts, amp))
+	{
+		bool underWater = engine->isUnderWater(amp[0], amp[1]);
+		amp[0] = amp[1] = 0.f;
+
+		if(underWater)
+		{
+			uwConsecutive++;
+			airConsecutive = 0;
+		}
+		else
+		{
+			airConsecutive++;
+			uwConsecutive = 0;
+		}
+
+		int previousState = reportedState;
+		if(uwConsecutive >= uwRequired)
+			reportedState = 1;
+		else if(airConsecutive >= airRequired)
+			reportedState = 0;
+
+		if(reportedState != previousState)
+			notifyState(reportedState == 1);
+	}
+
+	(*recorderQueue)->Enqueue(recorderQueue, samples, frameShorts * sizeof(short));
+	recordIndex = (recordIndex + 1) % NATIVE_AUDIO_BUFFERS;
+}
+
+void NativeAudio::notifyState(bool underWater)
+{
+	if(vm == NULL)
+		return;
+
+	JNIEnv * env;
+	if(vm->GetEnv((void **)&env, JNI_VERSION_1_6) != JNI_OK)
+	{
+		// the callback thread belongs to OpenSL ES, attach it once and detach it when it ends
+		if(vm->AttachCurrentThread(&env, NULL) != JNI_OK)
+			return;
+		pthread_once(&detachOnce, createDetachKey);
+		pthread_setspecific(detachKey, vm);
+	}
+
+	env->CallVoidMethod(target, method, (jboolean)underWater);
+	if(env->ExceptionCheck())
+	{
+		LOGE("State callback failed");
+		env->ExceptionDescribe();
+		env->ExceptionClear();
+	}
+}
+
+// JNI bindings for NativeAudio, only part of the Android build
+
+extern "C"
+{
+	jboolean Java_com_motim_waterdetection_NativeAudio_isSupported(JNIEnv* env, jclass clazz);
+	jlong Java_com_motim_waterdetection_NativeAudio_create(JNIEnv* env, jclass clazz, jobject target, jlong engine, jint sampleRate, jbyteArray tone);
+	jboolean Java_com_motim_waterdetection_NativeAudio_start(JNIEnv* env, jclass clazz, jlong handle, jint uwRequired, jint airRequired);
+	void Java_com_motim_waterdetection_NativeAudio_stop(JNIEnv* env, jclass clazz, jlong handle);
+	void Java_com_motim_waterdetection_NativeAudio_setFeatureEngine(JNIEnv* env, jclass clazz, jlong handle, jint featureEngine);
+	void Java_com_motim_waterdetection_NativeAudio_destroy(JNIEnv* env, jclass clazz, jlong handle);
+}
+
+// Java holds the handle, the global reference to the target travels with it
+struct NativeAudioHandle
+{
+	NativeAudio * audio;
+	jobject target;
+};
+
+static inline NativeAudioHandle * getHandle(jlong handle)
+{
+	return (NativeAudioHandle *)(intptr_t) handle;
+}
+
+jboolean Java_com_motim_waterdetection_NativeAudio_isSupported(JNIEnv* env, jclass clazz)
+{
+	return JNI_TRUE;
+}
+
+jlong Java_com_motim_waterdetection_NativeAudio_create(JNIEnv* env, jclass clazz, jobject target, jlong engine, jint sampleRate, jbyteArray tone)
+{
+	// the tone is little endian 16 bit mono, as the samples on every Android ABI
+	jsize toneBytes = env->GetArrayLength(tone);
+	jbyte * toneSamples = env->GetByteArrayElements(tone, NULL);
+	NativeAudio * audio = new NativeAudio((DetectionEngine *)(intptr_t) engine, sampleRate, (const short *)toneSamples, toneBytes / 2);
+	env->ReleaseByteArrayElements(tone, toneSamples, JNI_ABORT);
+
+	if(!audio->open())
+	{
+		delete audio;
+		return 0;
+	}
+
+	JavaVM * vm;
+	env->GetJavaVM(&vm);
+	NativeAudioHandle * handle = new NativeAudioHandle;
+	handle->audio = audio;
+	handle->target = env->NewGlobalRef(target);
+	audio->setCallback(vm, handle->target, env->GetMethodID(env->GetObjectClass(target), "onStateChange", "(Z)V"));
+	return (jlong)(intptr_t) handle;
+}
+
+jboolean Java_com_motim_waterdetection_NativeAudio_start(JNIEnv* env, jclass clazz, jlong handle, jint uwRequired, jint airRequired)
+{
+	return getHandle(handle)->audio->start(uwRequired, airRequired);
+}
+
+void Java_com_motim_waterdetection_NativeAudio_stop(JNIEnv* env, jclass clazz, jlong handle)
+{
+	getHandle(handle)->audio->stop();
+}
+
+void Java_com_motim_waterdetection_NativeAudio_setFeatureEngine(JNIEnv* env, jclass clazz, jlong handle, jint featureEngine)
+{
+	getHandle(handle)->audio->setFeatureEngine(featureEngine);
+}
+
+void Java_com_motim_waterdetection_NativeAudio_destroy(JNIEnv* env, jclass clazz, jlong handle)
+{
+	NativeAudioHandle * nativeHandle = getHandle(handle);
+	delete nativeHandle->audio;
+	env->DeleteGlobalRef(nativeHandle->target);
+	delete nativeHandle;
+}
@@ -0,0 +1,134 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+#ifndef NATIVEAUDIO_H_
+#define NATIVEAUDIO_H_
+
+#include <SLES/OpenSLES.h>
+#include <SLES/OpenSLES_Android.h>
+#include <pthread.h>
+#include <jni.h>
+
+#include "DetectionEngine.h"
+
+#define NATIVE_AUDIO_BUFFERS 4			// recording buffers queued at a time
+
+// Plays the probe tone and records both microphones through OpenSL ES buffer queues, running the detection
+// engine in the recorder callback. Java is only called when the reported state changes.
+// The engine must not be used elsewhere while the audio runs.
+
+class NativeAudio
+{
+	// Functions
+public:
+
+	~NativeAudio();
+
+	/**
+	 * Constructs the audio for an engine, playing the given mono tone in a loop at _sampleRate.
+	 * Nothing is allocated in OpenSL ES until open is called.
+	 */
+	NativeAudio(DetectionEngine * _engine, int _sampleRate, const short* _tone, int _toneSamples);
+
+	/**
+	 * Create and realize the player and the stereo recorder. Returns false if the device can't provide them.
+	 */
+	bool open();
+
+	/**
+	 * Call method of target with the new state on every change of the reported state, on the audio thread.
+	 * The method takes a boolean, true for underwater.
+	 */
+	void setCallback(JavaVM * _vm, jobject _target, jmethodID _method);
+
+	/**
+	 * Start playing and recording. A state is reported after _uwRequired consecutive underwater decisions
+	 * or _airRequired consecutive in air decisions, the first state after starting is always reported.
+	 */
+	bool start(int _uwRequired, int _airRequired);
+
+	/**
+	 * Stop playing and recording. No callbacks run once this returns.
+	 */
+	void stop();
+
+	/**
+	 * Select the feature engine, see DetectionEngine::setFeatureEngine. The callback applies it before the next
+	 * frame, or stop if no frame comes first, so the engine is never switched in the middle of a frame.
+	 */
+	void setFeatureEngine(int featureEngine);
+
+private:
+
+	static void recorderCallback(SLAndroidSimpleBufferQueueItf queue, void * context);
+	static void playerCallback(SLAndroidSimpleBufferQueueItf queue, void * context);
+	void onRecorded();
+	void notifyState(bool underWater);
+	void applyFeatureEngine();
+	void destroyObjects();
+
+	// Data
+private:
+
+	DetectionEngine * engine;
+	int sampleRate;
+	short * tone;
+	int toneSamples;
+
+	short * recordBuffers;			// NATIVE_AUDIO_BUFFERS frames of interleaved stereo samples
+	int frameShorts;
+	int recordIndex;				// buffer the next callback returns
+	float amp[2];
+
+	// hysteresis, as in WaterDetector
+	int reportedState;				// -1 until the first report after starting
+	int uwConsecutive;
+	int airConsecutive;
+	int uwRequired;
+	int airRequired;
+
+	pthread_mutex_t lock;			// held by callbacks, so stop can wait for them
+	bool running;
+	int featureEngineRequest;		// engine to switch to before the next frame, -1 if none
+
+	SLObjectItf engineObject;
+	SLEngineItf engineItf;
+	SLObjectItf outputMix;
+	SLObjectItf player;
+	SLPlayItf playItf;
+	SLAndroidSimpleBufferQueueItf playerQueue;
+	SLObjectItf recorder;
+	SLRecordItf recordItf;
+	SLAndroidSimpleBufferQueueItf recorderQueue;
+
+	JavaVM * vm;
+	jobject target;
+	jmethodID method;
+};
+
+#endif /* NATIVEAUDIO_H_ */
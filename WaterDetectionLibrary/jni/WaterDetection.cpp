@@ -28,227 +28,150 @@
 // SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 #include <jni.h>
-#include "FFT.h"
-#include <string.h>
-#include <math.h>
+#include "DetectionEngine.h"
+#include <stdint.h>
 
 //#include <stdio.h>
 //FILE * pFile;
 
-static int state = -1;
-static float * spectrogram1;
-static float * spectrogram2;
-static int numSpectra = 0;
-
-static FFT * fft;
-static int n = 512;
-
-static int w = 3;
-static int numbins = n/2 + 1;
-static int frames = 100;
-
-//features
-static int numfeatures = 8;
-static float * first;
-static int firstacc = 2;
-
-static float mean1,mean2, max1,max2, var1,var2;
-static int model = 0;
-
-// Z, Z1, Z1S respectively. Data from desktop training.
-static float k[] = { //air value bias scale-factor. Below one for less false negatives and above one for less false positives.
-		1.0f,
-		1.0f,
-		1.0f
-};
-
-static float bias1[] = {
-		35.5462,
-		20.5982,
-		3.6766
-};
-
-static float bias2[] = {
-		-35.9042,
-		-20.1277,
-		-3.4051
-};
-
-static float weights1[][9] = {
-		{ 	-7.5540,  -0.7146,   2.5971, -18.4074,  -8.8711,   0.5688,   0.2565,   0.0755,  -0.1047},
-		{  -26.0055,  11.1361,   3.5664,  -3.3576,  -3.5706,  -0.6180,   0.5575,   0.1595,   0.4632},
-		{ 	 0.6594,   2.0125,   1.8729,  -5.2284,  -2.7234,   0.9259,  -0.0331,   0.0046,  -0.7622}
-};
-
-static float weights2[][9] = {
-		{ 	 7.8489,   1.0318,  -2.3280,  18.8388,   9.3777,   0.1654,   0.4106,   0.2758,   0.2114},
-		{ 	26.1086, -10.7750,  -3.4174,   3.5933,   3.6595,   0.5035,   0.5272,   0.1125,  -0.0820},
-		{	-0.7273,  -1.6547,  -1.9048,   5.3467,   3.1399,  -1.1836,   0.3017,   0.0063,   0.5362}
-};
+// JNI bindings for DetectionEngine. Each Java DetectionEngine owns one native engine, passed around as a handle.
 
 extern "C"
 {
-	void Java_com_motim_waterdetection_WaterDetector_createEngine(JNIEnv* env, jclass clazz, jint _frames, jint _model);
-	void Java_com_motim_waterdetection_WaterDetector_shutdown(JNIEnv* env, jclass clazz);
+	jlong Java_com_motim_waterdetection_DetectionEngine_createEngine(JNIEnv* env, jclass clazz, jint frames, jint hop, jint n, jint bins, jint channels, jfloatArray classifier);
+	void Java_com_motim_waterdetection_DetectionEngine_shutdown(JNIEnv* env, jclass clazz, jlong handle);
+	void Java_com_motim_waterdetection_DetectionEngine_setFeatureEngine(JNIEnv* env, jclass clazz, jlong handle, jint featureEngine);
+	void Java_com_motim_waterdetection_DetectionEngine_restartWindow(JNIEnv* env, jclass clazz, jlong handle);
+	void Java_com_motim_waterdetection_DetectionEngine_setBaselineAdaptation(JNIEnv* env, jclass clazz, jlong handle, jfloat rate, jfloat minMargin);
+	void Java_com_motim_waterdetection_DetectionEngine_setBaseline(JNIEnv* env, jclass clazz, jlong handle, jfloatArray baseline);
+	void Java_com_motim_waterdetection_DetectionEngine_resetBaseline(JNIEnv* env, jclass clazz, jlong handle);
+
+	jboolean Java_com_motim_waterdetection_DetectionEngine_processFrame(JNIEnv* env, jclass clazz, jlong handle, jobject pcm, jint shortsRead, jobject amplitudes);
+	jboolean Java_com_motim_waterdetection_DetectionEngine_isUnderWater(JNIEnv* env, jclass clazz, jlong handle, jfloat amp1, jfloat amp2);
+	jboolean Java_com_motim_waterdetection_DetectionEngine_classify(JNIEnv* env, jclass clazz, jlong handle, jfloat amp1, jfloat amp2, jobject decision);
+	void Java_com_motim_waterdetection_DetectionEngine_getDecision(JNIEnv* env, jclass clazz, jlong handle, jobject decision);
+	jboolean Java_com_motim_waterdetection_DetectionEngine_replay(JNIEnv* env, jclass clazz, jlong handle, jobject decision);
+}
 
-	jboolean Java_com_motim_waterdetection_WaterDetector_buildSpectrogram(JNIEnv* env, jclass clazz, jfloatArray arr1, jfloatArray arr2);
-	jboolean Java_com_motim_waterdetection_WaterDetector_isUnderWater(JNIEnv* env, jclass clazz, jfloat amp1, jfloat amp2);
+static inline DetectionEngine * getEngine(jlong handle)
+{
+	return (DetectionEngine *)(intptr_t) handle;
 }
 
-void Java_com_motim_waterdetection_WaterDetector_createEngine(JNIEnv* env, jclass clazz, jint _frames, jint _model)
+jlong Java_com_motim_waterdetection_DetectionEngine_createEngine(JNIEnv* env, jclass clazz, jint frames, jint hop, jint n, jint bins, jint channels, jfloatArray classifier)
 {
-	frames = _frames;
-	model = _model;
+	// the Java side checks the length, CLASSIFIER_SIZE values
+	jfloat weights[CLASSIFIER_SIZE];
+	env->GetFloatArrayRegion(classifier, 0, CLASSIFIER_SIZE, weights);
+	return (jlong)(intptr_t) new DetectionEngine(frames, hop, n, bins, channels, weights);
+}
 
-	fft = new FFT(n);
-	spectrogram1 = new float[numbins*frames];
-	spectrogram2 = new float[numbins*frames];
+void Java_com_motim_waterdetection_DetectionEngine_shutdown(JNIEnv* env, jclass clazz, jlong handle)
+{
+	delete getEngine(handle);
+}
 
-	first = new float [numfeatures]; for(int i=0; i<numfeatures; i++) first[i] = 0.f;
+void Java_com_motim_waterdetection_DetectionEngine_setFeatureEngine(JNIEnv* env, jclass clazz, jlong handle, jint featureEngine)
+{
+	DetectionEngine * engine = getEngine(handle);
+	if(engine != NULL)
+		engine->setFeatureEngine(featureEngine);
 }
 
-void Java_com_motim_waterdetection_WaterDetector_shutdown(JNIEnv* env, jclass clazz)
+void Java_com_motim_waterdetection_DetectionEngine_restartWindow(JNIEnv* env, jclass clazz, jlong handle)
 {
-	delete fft;
-	delete [] spectrogram1;
-	delete [] spectrogram2;
+	DetectionEngine * engine = getEngine(handle);
+	if(engine != NULL)
+		engine->restartWindow();
+}
 
-	delete [] first;
+void Java_com_motim_waterdetection_DetectionEngine_setBaselineAdaptation(JNIEnv* env, jclass clazz, jlong handle, jfloat rate, jfloat minMargin)
+{
+	DetectionEngine * engine = getEngine(handle);
+	if(engine != NULL)
+		engine->setBaselineAdaptation(rate, minMargin);
 }
 
-#define MAX(a,b) (((a)>(b))?(a):(b))
-#define MIN(a,b) (((a)<(b))?(a):(b))
-static void getSpectrogramValues(int spectrum)
+void Java_com_motim_waterdetection_DetectionEngine_setBaseline(JNIEnv* env, jclass clazz, jlong handle, jfloatArray baseline)
 {
-	float * spectrogram = NULL;
-
-	spectrum == 1 ? spectrogram = spectrogram1 : spectrogram = spectrogram2;
-
-	//normalize
-	for(int i=0; i<numbins*frames; i++)
-		spectrogram[i] = logf(spectrogram[i] + 0.01f) * 10.f;
-
-	float mean = 0;
-	float max = 0;
-
-	int total=0;
-	for(int i=0; i<frames; i++)
-		for(int j=0; j<w; j++)
-		{
-			float val = spectrogram[i * numbins + j];
-			mean += val;
-			max = MAX(val, max);
-			total++;
-		}
-
-	mean /= (float)total;
-
-	float var = 0;
-	total=0;
-	for(int i=0; i<frames; i++)
-		for(int j=0; j< w; j++)
-		{
-			float val = spectrogram[i * numbins + j];
-			var += (val - mean)*(val - mean);
-			total++;
-		}
-
-	var /= (float)total;
-
-	if(spectrum == 1)
-	{
-		mean1 = mean;
-		max1 = max;
-		var1 = var;
-	}
-	else
-	{
-		mean2 = mean;
-		max2 = max;
-		var2 = var;
-	}
+	DetectionEngine * engine = getEngine(handle);
+	if(engine == NULL)
+		return;
+
+	// the Java side checks the length, FEATURE_COUNT values
+	jfloat values[FEATURE_COUNT];
+	env->GetFloatArrayRegion(baseline, 0, FEATURE_COUNT, values);
+	engine->setBaseline(values);
 }
 
-jboolean Java_com_motim_waterdetection_WaterDetector_isUnderWater(JNIEnv* env, jclass clazz, jfloat amp1, jfloat amp2)
+void Java_com_motim_waterdetection_DetectionEngine_resetBaseline(JNIEnv* env, jclass clazz, jlong handle)
 {
+	DetectionEngine * engine = getEngine(handle);
+	if(engine != NULL)
+		engine->resetBaseline();
+}
 
+jboolean Java_com_motim_waterdetection_DetectionEngine_isUnderWater(JNIEnv* env, jclass clazz, jlong handle, jfloat amp1, jfloat amp2)
+{
+	DetectionEngine * engine = getEngine(handle);
+	if(engine == NULL)
+		return false;
 
-	if(!state) return false;
-	else if(state <= firstacc)
-	{
-		first[0] += mean1;
-		first[1] += max1;
-		first[2] += var1;
+	return engine->isUnderWater(amp1, amp2);
+}
 
-		first[3] += mean2;
-		first[4] += max2;
-		first[5] += var2;
+jboolean Java_com_motim_waterdetection_DetectionEngine_classify(JNIEnv* env, jclass clazz, jlong handle, jfloat amp1, jfloat amp2, jobject decision)
+{
+	DetectionEngine * engine = getEngine(handle);
+	if(engine == NULL)
+		return false;
 
-		first[6] += amp1;
-		first[7] += amp2;
+	bool underWater = engine->isUnderWater(amp1, amp2);
 
-		if(state == firstacc)
-			for(int i=0; i<numfeatures; i++)
-			{
-				first[i] /= (float)firstacc;
-				if(first[i] == 0.f) first[i] = 0.01f;
-			}
+	// Written in place into the caller's direct buffer, skipped if it is too small
+	jfloat *out = (jfloat *) env->GetDirectBufferAddress(decision);
+	if(out != NULL && env->GetDirectBufferCapacity(decision) >= DECISION_SIZE)
+		engine->getDecision(out);
 
-		return false;
-	}
-	else
-	{
-		float input[numfeatures];
-		input[0] = mean1;
-		input[1] = max1;
-		input[2] = var1;
-
-		input[3] = mean2;
-		input[4] = max2;
-		input[5] = var2;
-
-		input[6] = amp1;
-		input[7] = amp2;
-
-		float air_value = bias1[model] * k[model];
-		float uw_value = bias2[model];
-
-		for(int i=0; i< numfeatures; i++)
-		{
-			air_value += weights1[model][i] * (input[i]/first[i]);
-			uw_value  += weights2[model][i] * (input[i]/first[i]);
-		}
-
-		air_value += weights1[model][numfeatures] * ((amp2 - amp1)/((amp2 + amp1)/2.f));
-		uw_value  += weights2[model][numfeatures] * ((amp2 - amp1)/((amp2 + amp1)/2.f));
-
-		return uw_value  > air_value;
-	}
+	return underWater;
 }
 
-jboolean Java_com_motim_waterdetection_WaterDetector_buildSpectrogram(JNIEnv* env, jclass clazz, jfloatArray arr1, jfloatArray arr2)
+void Java_com_motim_waterdetection_DetectionEngine_getDecision(JNIEnv* env, jclass clazz, jlong handle, jobject decision)
 {
-	jfloat *data1 = env->GetFloatArrayElements(arr1, 0);
-	jfloat *data2 = env->GetFloatArrayElements(arr2, 0);
+	DetectionEngine * engine = getEngine(handle);
+	jfloat *out = (jfloat *) env->GetDirectBufferAddress(decision);
+	if(engine != NULL && out != NULL && env->GetDirectBufferCapacity(decision) >= DECISION_SIZE)
+		engine->getDecision(out);
+}
 
-	fft->fftr(data1, 0, n);
-	fft->fftr(data2, 0, n);
+jboolean Java_com_motim_waterdetection_DetectionEngine_replay(JNIEnv* env, jclass clazz, jlong handle, jobject decision)
+{
+	DetectionEngine * engine = getEngine(handle);
+	jfloat *values = (jfloat *) env->GetDirectBufferAddress(decision);
+	if(engine == NULL || values == NULL || env->GetDirectBufferCapacity(decision) < DECISION_SIZE)
+		return false;
 
-	memcpy(&spectrogram1[numSpectra * numbins], data1, numbins * sizeof(float));
-	memcpy(&spectrogram2[numSpectra * numbins], data2, numbins * sizeof(float));
+	// The recorded features go in and the new decision overwrites them
+	engine->setFeatures(values + DECISION_FEATURES);
+	bool underWater = engine->isUnderWater(values[DECISION_FEATURES + 6], values[DECISION_FEATURES + 7]);
+	engine->getDecision(values);
+	return underWater;
+}
 
-	env->ReleaseFloatArrayElements(arr1, data1, 0);
-	env->ReleaseFloatArrayElements(arr2, data2, 0);
+jboolean Java_com_motim_waterdetection_DetectionEngine_processFrame(JNIEnv* env, jclass clazz, jlong handle, jobject pcm, jint shortsRead, jobject amplitudes)
+{
+	DetectionEngine * engine = getEngine(handle);
 
-	if(++numSpectra == frames)
-	{
-		getSpectrogramValues(1);
-		getSpectrogramValues(2);
+	// Direct buffers are accessed in place, no pinning or copying
+	const jshort *samples = (const jshort *) env->GetDirectBufferAddress(pcm);
+	jfloat *amp = (jfloat *) env->GetDirectBufferAddress(amplitudes);
 
-		state++;
-		numSpectra = 0;
-		return true;
-	}
-	else
+	if(engine == NULL || samples == NULL || amp == NULL)
 		return false;
+
+	jlong capacity = env->GetDirectBufferCapacity(pcm) / sizeof(jshort);
+	if(shortsRead > capacity)
+		shortsRead = (jint) capacity;
+
+	return engine->processFrame(samples, shortsRead, amp);
 }
@@ -0,0 +1,90 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+#ifndef BENCHMARK_H_
+#define BENCHMARK_H_
+
+// A minimal micro-benchmark harness for the native detection code.
+// Reports in the same columns as Google Benchmark so results can be compared side by side.
+
+#include <stdio.h>
+#include <time.h>
+
+typedef void (*BenchmarkFunction)(void* context);
+
+/**
+ * Monotonic time in nanoseconds.
+ */
+static inline double benchmarkNow()
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1e9 + ts.tv_nsec;
+}
+
+/**
+ * Print the table header for benchmark results.
+ */
+static inline void benchmarkHeader()
+{
+	printf("%-40s %15s %15s\n", "Benchmark", "Time (ns)", "Iterations");
+	printf("--------------------------------------------------------------------------\n");
+}
+
+/**
+ * Run a function repeatedly, doubling the iteration count until it runs for at least minTimeNs.
+ * Returns and prints the mean time per iteration in nanoseconds.
+ */
+static inline double runBenchmark(const char* name, BenchmarkFunction fn, void* context, double minTimeNs = 5e8)
+{
+	long iterations = 1;
+	double elapsed = 0;
+
+	// warm up caches and branch predictors
+	for(int i = 0; i < 100; i++)
+		fn(context);
+
+	for(;;)
+	{
+		double start = benchmarkNow();
+		for(long i = 0; i < iterations; i++)
+			fn(context);
+		elapsed = benchmarkNow() - start;
+
+		if(elapsed >= minTimeNs || iterations >= (1L << 30))
+			break;
+		iterations <<= 1;
+	}
+
+	double perIteration = elapsed / iterations;
+	printf("%-40s %15.1f %15ld\n", name, perIteration, iterations);
+	return perIteration;
+}
+
+#endif /* BENCHMARK_H_ */
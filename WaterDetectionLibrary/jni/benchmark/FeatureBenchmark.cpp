@@ -0,0 +1,356 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+// Compares the full FFT against the Goertzel and fixed-point feature engines for the bins used by the classifier,
+// the stereo FFT against one FFT per channel, and the SIMD kernels against the scalar reference kernels.
+// Build with ndk-build and run the FeatureBenchmark executable on the device through adb shell.
+
+#include "../FFT.h"
+#include "../Goertzel.h"
+#include "../FixedPoint.h"
+#include "../Kernels.h"
+#include "Benchmark.h"
+#include <math.h>
+#include <stdlib.h>
+#include <string.h>
+
+static const int n = 512;
+static const int w = 3;
+
+struct FeatureContext
+{
+	FFT * fft;
+	FFT * scalarFft;
+	Goertzel * goertzel;
+	FixedPointFeatures * fixed;
+	short * pcm;				// both signals as interleaved stereo samples, for the fixed-point engine
+	float * samples1;
+	float * samples2;
+	float * data1;
+	float * data2;
+	float out1[w];
+	float out2[w];
+	int fixedOut[w];
+};
+
+// The whole spectrum of one frame for both microphones
+static void fftFrame(void* context)
+{
+	FeatureContext * c = (FeatureContext *) context;
+	c->fft->fftr(c->samples1, c->data1, 0, c->fft->validSpectrumLength);
+	c->fft->fftr(c->samples2, c->data2, 0, c->fft->validSpectrumLength);
+}
+
+// Both microphones through one stereo transform
+static void stereoFftFrame(void* context)
+{
+	FeatureContext * c = (FeatureContext *) context;
+	c->fft->fftrStereo(c->samples1, c->samples2, c->data1, c->data2, 0, c->fft->validSpectrumLength);
+}
+
+static void scalarFftFrame(void* context)
+{
+	FeatureContext * c = (FeatureContext *) context;
+	c->scalarFft->fftr(c->samples1, c->data1, 0, c->scalarFft->validSpectrumLength);
+	c->scalarFft->fftr(c->samples2, c->data2, 0, c->scalarFft->validSpectrumLength);
+}
+
+// Only the feature bins of one frame for both microphones, as done by buildSpectrogram
+static void featureFftFrame(void* context)
+{
+	FeatureContext * c = (FeatureContext *) context;
+	c->fft->fftr(c->samples1, c->out1, 0, w);
+	c->fft->fftr(c->samples2, c->out2, 0, w);
+}
+
+static void featureStereoFftFrame(void* context)
+{
+	FeatureContext * c = (FeatureContext *) context;
+	c->fft->fftrStereo(c->samples1, c->samples2, c->out1, c->out2, 0, w);
+}
+
+static void goertzelFrame(void* context)
+{
+	FeatureContext * c = (FeatureContext *) context;
+	c->goertzel->power(c->samples1, c->out1);
+	c->goertzel->power(c->samples2, c->out2);
+}
+
+// Both channels straight from the interleaved samples
+static void fixedFrame(void* context)
+{
+	FeatureContext * c = (FeatureContext *) context;
+	c->fixed->logPower(c->pcm, n, c->fixedOut);
+	c->fixed->logPower(c->pcm + 1, n, c->fixedOut);
+}
+
+// Separating and scaling the interleaved samples of one frame, as done before every float feature transform
+static void deinterleaveFrame(void* context)
+{
+	FeatureContext * c = (FeatureContext *) context;
+	float sums[2] = { 0.f, 0.f };
+	getKernels()->deinterleave(c->pcm, n, c->data1, c->data2, sums);
+}
+
+static void scalarDeinterleaveFrame(void* context)
+{
+	FeatureContext * c = (FeatureContext *) context;
+	float sums[2] = { 0.f, 0.f };
+	scalarKernels()->deinterleave(c->pcm, n, c->data1, c->data2, sums);
+}
+
+// Synthesise a recording like frame: noise, a DC offset and some low frequency content, scaled like the Java layer does
+static void makeSignal(float * samples, unsigned int seed)
+{
+	srand(seed);
+	for(int i = 0; i < n; i++)
+	{
+		float noise = (float)(rand() % 2001 - 1000);
+		float tone = 3000.f * sinf(2.f * 3.14159265f * 1.3f * i / n);
+		samples[i] = 1000.f * (float)(short)(noise + tone + 40.f);
+	}
+}
+
+// Largest difference of the log normalised features, as used by getSpectrogramValues
+static float compare(FeatureContext * c)
+{
+	float maxDiff = 0.f;
+
+	for(unsigned int seed = 1; seed <= 200; seed++)
+	{
+		makeSignal(c->samples1, seed);
+		c->fft->fftr(c->samples1, c->data1, 0, w);
+		c->goertzel->power(c->samples1, c->out1);
+
+		for(int k = 0; k < w; k++)
+		{
+			float a = logf(c->data1[k] + 0.01f) * 10.f;
+			float b = logf(c->out1[k] + 0.01f) * 10.f;
+			if(fabsf(a - b) > maxDiff)
+				maxDiff = fabsf(a - b);
+		}
+	}
+
+	return maxDiff;
+}
+
+// Largest difference of the fixed-point log features from the float FFT ones
+static float compareFixed(FeatureContext * c)
+{
+	float maxDiff = 0.f;
+
+	for(unsigned int seed = 1; seed <= 200; seed++)
+	{
+		makeSignal(c->samples1, seed);
+		for(int i = 0; i < n; i++)
+			c->pcm[2 * i] = (short)(c->samples1[i] / 1000.f);
+		c->fft->fftr(c->samples1, c->data1, 0, w);
+		c->fixed->logPower(c->pcm, n, c->fixedOut);
+
+		for(int k = 0; k < w; k++)
+		{
+			float a = logf(c->data1[k] + 0.01f) * 10.f;
+			float b = (float)c->fixedOut[k] / FIXED_FEATURE_ONE;
+			if(fabsf(a - b) > maxDiff)
+				maxDiff = fabsf(a - b);
+		}
+	}
+
+	return maxDiff;
+}
+
+// Largest difference of the FFT spectrum from a double precision DFT, relative to the spectrum peak
+static float compareDft(FeatureContext * c)
+{
+	float maxDiff = 0.f;
+
+	for(unsigned int seed = 1; seed <= 10; seed++)
+	{
+		makeSignal(c->samples1, seed);
+		c->fft->fftr(c->samples1, c->data1, 0, c->fft->validSpectrumLength);
+
+		double peak = 0.0;
+		for(int k = 0; k < c->fft->validSpectrumLength; k++)
+		{
+			double re = 0.0, im = 0.0;
+			for(int i = 0; i < n; i++)
+			{
+				re += c->samples1[i] * cos(2.0 * M_PI * k * i / n);
+				im -= c->samples1[i] * sin(2.0 * M_PI * k * i / n);
+			}
+			c->data2[k] = (float)(re * re + im * im);
+			peak = fmax(peak, re * re + im * im);
+		}
+
+		for(int k = 0; k < c->fft->validSpectrumLength; k++)
+			maxDiff = fmaxf(maxDiff, (float)(fabs(c->data1[k] - c->data2[k]) / peak));
+	}
+
+	return maxDiff;
+}
+
+// Largest difference of the stereo FFT spectra from those of one transform per channel, relative to the spectrum peak
+static float compareStereo(FeatureContext * c)
+{
+	float maxDiff = 0.f;
+	float * reference1 = new float[n];
+	float * reference2 = new float[n];
+
+	for(unsigned int seed = 1; seed <= 200; seed++)
+	{
+		makeSignal(c->samples1, seed);
+		makeSignal(c->samples2, seed + 1000);
+		c->fft->fftr(c->samples1, reference1, 0, c->fft->validSpectrumLength);
+		c->fft->fftr(c->samples2, reference2, 0, c->fft->validSpectrumLength);
+		c->fft->fftrStereo(c->samples1, c->samples2, c->data1, c->data2, 0, c->fft->validSpectrumLength);
+
+		float peak = 0.f;
+		for(int k = 0; k < c->fft->validSpectrumLength; k++)
+			peak = fmaxf(peak, fmaxf(reference1[k], reference2[k]));
+		for(int k = 0; k < c->fft->validSpectrumLength; k++)
+			maxDiff = fmaxf(maxDiff, fmaxf(fabsf(c->data1[k] - reference1[k]), fabsf(c->data2[k] - reference2[k])) / peak);
+	}
+
+	delete [] reference1;
+	delete [] reference2;
+	return maxDiff;
+}
+
+// Largest difference of the SIMD FFT spectrum from the scalar one relative to the spectrum peak,
+// and largest difference of the deinterleaved samples and amplitude sums
+static float compareKernels(FeatureContext * c, const Kernels * simd)
+{
+	float maxDiff = 0.f;
+	float * reference = new float[n];
+	short * pcm = new short[2 * n];
+
+	for(unsigned int seed = 1; seed <= 200; seed++)
+	{
+		makeSignal(c->samples1, seed);
+		c->fft->fftr(c->samples1, c->data1, 0, c->fft->validSpectrumLength);
+		c->scalarFft->fftr(c->samples1, reference, 0, c->fft->validSpectrumLength);
+
+		float peak = 0.f;
+		for(int k = 0; k < c->fft->validSpectrumLength; k++)
+			peak = fmaxf(peak, reference[k]);
+		for(int k = 0; k < c->fft->validSpectrumLength; k++)
+			maxDiff = fmaxf(maxDiff, fabsf(c->data1[k] - reference[k]) / peak);
+
+		// odd frame counts exercise the scalar tail of the SIMD loop
+		int frames = n - (seed % 4);
+		for(int i = 0; i < 2 * frames; i++)
+			pcm[i] = (short)(rand() % 65536 - 32768);
+
+		float sums1[2] = { 0.f, 0.f };
+		float sums2[2] = { 0.f, 0.f };
+		scalarKernels()->deinterleave(pcm, frames, reference, c->data2, sums1);
+		simd->deinterleave(pcm, frames, c->data1, c->samples2, sums2);
+
+		for(int k = 0; k < frames; k++)
+			maxDiff = fmaxf(maxDiff, fmaxf(fabsf(c->data1[k] - reference[k]), fabsf(c->samples2[k] - c->data2[k])));
+		maxDiff = fmaxf(maxDiff, fmaxf(fabsf(sums1[0] - sums2[0]), fabsf(sums1[1] - sums2[1])));
+	}
+
+	delete [] reference;
+	delete [] pcm;
+	return maxDiff;
+}
+
+int main(int argc, char** argv)
+{
+	FeatureContext c;
+	c.fft = new FFT(n);
+	c.scalarFft = new FFT(n);
+	c.scalarFft->setKernels(scalarKernels());
+	c.goertzel = new Goertzel(n, w);
+	c.fixed = new FixedPointFeatures(n, w);
+	c.pcm = new short[2 * n];
+	c.samples1 = new float[n];
+	c.samples2 = new float[n];
+	c.data1 = new float[n];
+	c.data2 = new float[n];
+
+	float maxDiff = compare(&c);
+	printf("Max log feature difference FFT vs Goertzel: %f\n", maxDiff);
+
+	float fixedDiff = compareFixed(&c);
+	printf("Max log feature difference FFT vs fixed point: %f\n", fixedDiff);
+
+	float dftDiff = compareDft(&c);
+	printf("Max relative difference FFT vs DFT: %g\n", dftDiff);
+
+	float stereoDiff = compareStereo(&c);
+	printf("Max relative difference stereo FFT vs FFT per channel: %g\n", stereoDiff);
+
+	float kernelDiff = 0.f;
+	if(getKernels() != scalarKernels())
+	{
+		kernelDiff = compareKernels(&c, getKernels());
+		printf("Max difference %s vs scalar kernels: %g\n", getKernels()->name, kernelDiff);
+	}
+	else
+		printf("SIMD kernels not supported, using scalar kernels\n");
+	printf("\n");
+
+	makeSignal(c.samples1, 1);
+	makeSignal(c.samples2, 2);
+	for(int i = 0; i < n; i++)
+	{
+		c.pcm[2 * i] = (short)(c.samples1[i] / 1000.f);
+		c.pcm[2 * i + 1] = (short)(c.samples2[i] / 1000.f);
+	}
+
+	benchmarkHeader();
+	double scalarDeinterleaveTime = runBenchmark("Deinterleave/frame scalar", scalarDeinterleaveFrame, &c);
+	double deinterleaveTime = runBenchmark("Deinterleave/frame", deinterleaveFrame, &c);
+	double scalarTime = runBenchmark("FFT/frame scalar (2 channels)", scalarFftFrame, &c);
+	double fftTime = runBenchmark("FFT/frame (2 channels)", fftFrame, &c);
+	double stereoTime = runBenchmark("FFT/frame stereo (2 channels)", stereoFftFrame, &c);
+	double featureTime = runBenchmark("FFT/frame feature bins (2 channels)", featureFftFrame, &c);
+	double featureStereoTime = runBenchmark("FFT/frame feature bins stereo (2 channels)", featureStereoFftFrame, &c);
+	double goertzelTime = runBenchmark("Goertzel/frame (2 channels)", goertzelFrame, &c);
+	double fixedTime = runBenchmark("Fixed point/frame (2 channels)", fixedFrame, &c);
+	printf("\nSpeedup %s vs scalar deinterleave: %.1fx\n", getKernels()->name, scalarDeinterleaveTime / deinterleaveTime);
+	printf("Speedup %s vs scalar FFT: %.1fx\n", getKernels()->name, scalarTime / fftTime);
+	printf("Speedup stereo FFT vs FFT per channel: %.2fx (feature bins %.2fx)\n", fftTime / stereoTime, featureTime / featureStereoTime);
+	printf("Speedup Goertzel vs FFT feature bins: %.1fx\n", featureTime / goertzelTime);
+	printf("Speedup fixed point vs FFT feature bins: %.1fx\n", featureTime / fixedTime);
+
+	delete c.fft;
+	delete c.scalarFft;
+	delete c.goertzel;
+	delete c.fixed;
+	delete [] c.pcm;
+	delete [] c.samples1;
+	delete [] c.samples2;
+	delete [] c.data1;
+	delete [] c.data2;
+
+	return maxDiff < 0.1f && fixedDiff < 0.1f && dftDiff < 1e-4f && stereoDiff < 1e-6f && kernelDiff < 1e-4f ? 0 : 1;
+}
@@ -0,0 +1,236 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+// Benchmarks every stage of the native detection pipeline, without JNI, so the numbers can be
+// compared with the Java PipelineBenchmark to see the JNI overhead.
+// Usage: PipelineBenchmark [recording.wav | recording.pcm]
+// Recordings must be 16 bit stereo at 44.1 kHz, a synthetic signal is used when none is given.
+
+#include "../DetectionEngine.h"
+#include "../FFT.h"
+#include "../Goertzel.h"
+#include "Benchmark.h"
+#include <math.h>
+#include <stdlib.h>
+#include <string.h>
+
+static const int n = 512;
+static const int w = 3;
+static const int frameShorts = 2 * n;
+static const double frameNs = 1e9 * n / 44100.0;
+// The classifier costs the same whatever the weights, only the air bias scale-factor is set
+static const float classifier[CLASSIFIER_SIZE] = { 1.f };
+
+struct PipelineContext
+{
+	short * pcm;				// recording, frameShorts samples per frame
+	int numFrames;
+	int frame;					// next frame to use
+
+	DetectionEngine * engine;
+	FFT * fft;
+	Goertzel * goertzel;
+	float * data1;
+	float * data2;
+	float bins[2 * w];
+	float amp[2];
+	volatile bool result;
+};
+
+static const short * nextFrame(PipelineContext * c)
+{
+	const short * samples = &c->pcm[c->frame * frameShorts];
+	c->frame = (c->frame + 1) % c->numFrames;
+	return samples;
+}
+
+static void deinterleaveStage(void* context)
+{
+	PipelineContext * c = (PipelineContext *) context;
+	c->amp[0] = c->amp[1] = 0.f;
+	DetectionEngine::deinterleave(nextFrame(c), frameShorts, n, c->data1, c->data2, c->amp);
+}
+
+// The feature bins of both microphones, one transform per microphone
+static void fftStage(void* context)
+{
+	PipelineContext * c = (PipelineContext *) context;
+	c->fft->fftr(c->data1, c->bins, 0, w);
+	c->fft->fftr(c->data2, c->bins + w, 0, w);
+}
+
+// The feature bins of both microphones in one pass, as done by the FFT engine
+static void stereoFftStage(void* context)
+{
+	PipelineContext * c = (PipelineContext *) context;
+	c->fft->fftrStereo(c->data1, c->data2, c->bins, c->bins + w, 0, w);
+}
+
+static void goertzelStage(void* context)
+{
+	PipelineContext * c = (PipelineContext *) context;
+	c->goertzel->power(c->data1, c->bins);
+	c->goertzel->power(c->data2, c->bins);
+}
+
+static void processFrameStage(void* context)
+{
+	PipelineContext * c = (PipelineContext *) context;
+	c->result = c->engine->processFrame(nextFrame(c), frameShorts, c->amp);
+	if(c->result)
+		c->amp[0] = c->amp[1] = 0.f;
+}
+
+static void isUnderWaterStage(void* context)
+{
+	PipelineContext * c = (PipelineContext *) context;
+	c->result = c->engine->isUnderWater(c->amp[0] + 100.f, c->amp[1] + 100.f);
+}
+
+// Load a WAV or raw PCM file, skipping a canonical 44 byte WAV header
+static bool loadRecording(PipelineContext * c, const char * path)
+{
+	FILE * file = fopen(path, "rb");
+	if(file == NULL)
+		return false;
+
+	fseek(file, 0, SEEK_END);
+	long size = ftell(file);
+	fseek(file, 0, SEEK_SET);
+
+	char riff[4] = {0};
+	long offset = 0;
+	if(fread(riff, 1, 4, file) == 4 && memcmp(riff, "RIFF", 4) == 0)
+		offset = 44;
+	fseek(file, offset, SEEK_SET);
+
+	c->numFrames = (int)((size - offset) / (frameShorts * sizeof(short)));
+	if(c->numFrames <= 0)
+	{
+		fclose(file);
+		return false;
+	}
+
+	c->pcm = new short[c->numFrames * frameShorts];
+	size_t read = fread(c->pcm, frameShorts * sizeof(short), c->numFrames, file);
+	fclose(file);
+	c->numFrames = (int) read;
+	return read > 0;
+}
+
+// Ten seconds of a noisy low frequency signal
+static void synthesizeRecording(PipelineContext * c)
+{
+	c->numFrames = 10 * 44100 / n;
+	c->pcm = new short[c->numFrames * frameShorts];
+
+	srand(1);
+	for(int i = 0; i < c->numFrames * n; i++)
+	{
+		c->pcm[2 * i] = (short)(2000.f * sinf(i * 0.01f) + rand() % 1001 - 500);
+		c->pcm[2 * i + 1] = (short)(1500.f * sinf(i * 0.013f) + rand() % 1001 - 500);
+	}
+}
+
+static void report(const char * name, double ns)
+{
+	printf("  %-38s %10.1f ns/frame  real-time factor %8.1fx\n", name, ns, frameNs / ns);
+}
+
+int main(int argc, char** argv)
+{
+	PipelineContext c;
+	memset(&c, 0, sizeof(c));
+
+	if(argc > 1)
+	{
+		if(!loadRecording(&c, argv[1]))
+		{
+			fprintf(stderr, "Could not load %s\n", argv[1]);
+			return 1;
+		}
+		printf("Recording %s, %d frames\n\n", argv[1], c.numFrames);
+	}
+	else
+	{
+		synthesizeRecording(&c);
+		printf("Synthetic recording, %d frames\n\n", c.numFrames);
+	}
+
+	c.fft = new FFT(n);
+	c.goertzel = new Goertzel(n, w);
+	c.data1 = new float[n];
+	c.data2 = new float[n];
+	deinterleaveStage(&c);
+
+	benchmarkHeader();
+	double deinterleave = runBenchmark("Deinterleave/scale", deinterleaveStage, &c);
+	double fft = runBenchmark("FFT::fftr x2", fftStage, &c);
+	double stereoFft = runBenchmark("FFT::fftrStereo", stereoFftStage, &c);
+	double goertzel = runBenchmark("Goertzel::power x2", goertzelStage, &c);
+
+	c.engine = new DetectionEngine(80, 80, n, w, CHANNELS_STEREO, classifier);
+	double frameFft = runBenchmark("processFrame (FFT engine)", processFrameStage, &c);
+	double classify = runBenchmark("isUnderWater", isUnderWaterStage, &c);
+	delete c.engine;
+
+	c.engine = new DetectionEngine(80, 80, n, w, CHANNELS_STEREO, classifier);
+	c.engine->setFeatureEngine(FEATURE_ENGINE_GOERTZEL);
+	double frameGoertzel = runBenchmark("processFrame (Goertzel engine)", processFrameStage, &c);
+	delete c.engine;
+
+	c.engine = new DetectionEngine(80, 80, n, w, CHANNELS_STEREO, classifier);
+	c.engine->setFeatureEngine(FEATURE_ENGINE_FIXED_POINT);
+	double frameFixed = runBenchmark("processFrame (fixed-point engine)", processFrameStage, &c);
+	delete c.engine;
+
+	printf("\nPer frame of %d samples per microphone (%.2f ms of audio):\n", n, frameNs / 1e6);
+	report("deinterleave/scale", deinterleave);
+	report("FFT pair", fft);
+	report("FFT pair, stereo", stereoFft);
+	report("Goertzel pair", goertzel);
+	// the difference of separately measured stages, within measurement noise of zero once the transforms are fast
+	double statistics = frameGoertzel - deinterleave - goertzel;
+	if(statistics > 0)
+		printf("  %-38s %10.1f ns/frame\n", "feature statistics (derived)", statistics);
+	else
+		printf("  %-38s %10s\n", "feature statistics (derived)", "below noise");
+	report("end to end, FFT engine", frameFft);
+	report("end to end, Goertzel engine", frameGoertzel);
+	report("end to end, fixed-point engine", frameFixed);
+	printf("  %-38s %10.1f ns/decision\n", "isUnderWater", classify);
+
+	delete c.fft;
+	delete c.goertzel;
+	delete [] c.data1;
+	delete [] c.data2;
+	delete [] c.pcm;
+
+	return 0;
+}
@@ -0,0 +1,104 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.nio.ByteBuffer;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+/**
+ * AudioRecordSource records both microphones through the camcorder audio source,
+ * which is the default source of WaterDetector
+ */
+public class AudioRecordSource implements AudioSource {
+	private final int sampleRateInHz;
+	private final int bufferFrames;
+	private AudioRecord audioRecord;
+	
+	/**
+	 * @param sampleRateInHz The recording sample rate
+	 */
+	public AudioRecordSource(int sampleRateInHz) {
+		this(sampleRateInHz, 0);
+	}
+	
+	/**
+	 * @param sampleRateInHz The recording sample rate
+	 * @param bufferFrames Size of the recording buffer in stereo frames, raised to the platform minimum if smaller
+	 */
+	public AudioRecordSource(int sampleRateInHz, int bufferFrames) {
+		this.sampleRateInHz = sampleRateInHz;
+		this.bufferFrames = bufferFrames;
+	}
+	
+	@Override
+	public boolean start() {
+		//Restarted after stop by duty-cycled detectors, the recorder is kept until release
+		if (audioRecord == null) {
+			int bufferSize = Math.max(bufferFrames * 2 * 2,
+					AudioRecord.getMinBufferSize(sampleRateInHz, AudioFormat.CHANNEL_IN_STEREO, AudioFormat.ENCODING_PCM_16BIT));
+			audioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, sampleRateInHz, AudioFormat.CHANNEL_IN_STEREO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+		}
+		
+		if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+			return false;
+		}
+		audioRecord.startRecording();
+		return true;
+	}
+	
+	@Override
+	public int read(ByteBuffer buffer, int sizeInBytes) {
+		int bytesRead = audioRecord.read(buffer, sizeInBytes);
+		return bytesRead < 0 ? ERROR : bytesRead;
+	}
+	
+	@Override
+	public void stop() {
+		if (audioRecord != null && audioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
+			audioRecord.stop();
+		}
+	}
+	
+	@Override
+	public void release() {
+		if (audioRecord != null) {
+			audioRecord.release();
+			audioRecord = null;
+		}
+	}
+	
+	@Override
+	public int getSampleRate() {
+		return sampleRateInHz;
+	}
+}
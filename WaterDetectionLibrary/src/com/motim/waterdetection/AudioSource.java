@@ -0,0 +1,74 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AudioSource supplies the interleaved 16 bit stereo audio analysed by the detector,
+ * one sample from each microphone per frame
+ */
+public interface AudioSource {
+	/** Returned by read when the source has no more audio */
+	int END_OF_STREAM = -1;
+	/** Returned by read when reading failed, the detector will try again */
+	int ERROR = -2;
+	
+	/**
+	 * Start delivering audio. A duty-cycled detector starts the source again after each stop.
+	 * @return True if the source is ready to be read, False otherwise
+	 */
+	boolean start();
+	
+	/**
+	 * Read samples in native byte order into the buffer, starting at position 0.
+	 * Blocks until audio is available.
+	 * @param buffer Direct buffer to fill, in native byte order
+	 * @param sizeInBytes Maximum number of bytes to read, a multiple of 4
+	 * @return Number of bytes read, END_OF_STREAM or ERROR
+	 */
+	int read(ByteBuffer buffer, int sizeInBytes);
+	
+	/**
+	 * Stop delivering audio, called when the detector is paused and between the bursts of a duty-cycled detector
+	 */
+	void stop();
+	
+	/**
+	 * Free the resources of the source, called after stop when the detector is paused.
+	 * Sources shared with other users can leave this empty.
+	 */
+	void release();
+	
+	/**
+	 * @return The sample rate of the audio in Hz
+	 */
+	int getSampleRate();
+}
@@ -0,0 +1,97 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+/**
+ * AudioTrackToneSink plays the test tone on the music stream, the default sink of WaterDetector.
+ * The tone is copied to the track once and looped by the audio system, no thread has to keep writing it.
+ */
+public class AudioTrackToneSink implements ToneSink {
+	private final int sampleRateInHz;
+	private AudioTrack audioTrack;
+	
+	/**
+	 * @param sampleRateInHz The playback sample rate
+	 */
+	public AudioTrackToneSink(int sampleRateInHz) {
+		this.sampleRateInHz = sampleRateInHz;
+	}
+	
+	@Override
+	public boolean start(byte[] tone) {
+		//Restarted after stop by duty-cycled detectors, the track and its data are kept until release
+		if (audioTrack == null) {
+			audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRateInHz, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, tone.length, AudioTrack.MODE_STATIC);
+			if (audioTrack.write(tone, 0, tone.length) != tone.length) {
+				return false;
+			}
+		}
+		else if (audioTrack.reloadStaticData() != AudioTrack.SUCCESS) {
+			return false;
+		}
+		
+		if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+			return false;
+		}
+		//Loop the whole tone until stopped
+		audioTrack.setLoopPoints(0, tone.length / 2, -1);
+		audioTrack.play();
+		return true;
+	}
+	
+	@Override
+	public boolean isLooping() {
+		return true;
+	}
+	
+	@Override
+	public void write(byte[] tone, int offset, int length) {
+		//Never called, the track loops the tone by itself
+	}
+	
+	@Override
+	public void stop() {
+		if (audioTrack != null && audioTrack.getState() == AudioTrack.STATE_INITIALIZED) {
+			audioTrack.stop();
+		}
+	}
+	
+	@Override
+	public void release() {
+		if (audioTrack != null) {
+			audioTrack.release();
+			audioTrack = null;
+		}
+	}
+}
@@ -0,0 +1,341 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * BatchAnalyzer runs the detection pipeline over recorded audio instead of the live microphones.
+ * It does not depend on the Android framework, so with a host build of the native library
+ * (see jni/host) it runs on a desktop JVM as well as on a device.
+ * Each analysis uses its own native engine, so files can be analysed in parallel.
+ */
+public class BatchAnalyzer {
+	private final DetectorConfig config;
+	//Interleaved 16 bit stereo frames of the configured FFT size
+	private final int frameBytes;
+	private int featureEngine = WaterDetector.FEATURE_ENGINE_FFT;
+	
+	/**
+	 * The classification of a single detection window
+	 */
+	public static class Window {
+		/** Time of the end of the window from the start of the recording, in milliseconds */
+		public final long timeMs;
+		/** Raw classifier decision, always false while the detector is calibrating */
+		public final boolean underWater;
+		/** Classifier inputs: mean, max and variance of each microphone followed by both amplitudes, see Decision */
+		public final float[] features;
+		/** Underwater minus in air score, NaN while the detector is calibrating */
+		public final float margin;
+		
+		Window(long timeMs, boolean underWater, float[] features, float margin) {
+			this.timeMs = timeMs;
+			this.underWater = underWater;
+			this.features = features;
+			this.margin = margin;
+		}
+	}
+	
+	/**
+	 * The decisions for one recording
+	 */
+	public static class Result {
+		/** Name of the analysed recording */
+		public final String name;
+		/** Decisions in recording order */
+		public final List<Window> windows;
+		
+		Result(String name, List<Window> windows) {
+			this.name = name;
+			this.windows = Collections.unmodifiableList(windows);
+		}
+	}
+	
+	/**
+	 * Create an analyzer with the same window settings as a live detector
+	 * @param windowFrames Number of spectrum frames the features are computed over
+	 * @param hopFrames Number of frames between decisions
+	 * @param profile Device profile of the phone the recordings were made with
+	 */
+	public BatchAnalyzer(int windowFrames, int hopFrames, DeviceProfile profile) {
+		this(new DetectorConfig.Builder(profile).setWindowFrames(windowFrames, hopFrames).build());
+	}
+	
+	/**
+	 * Create an analyzer with the window settings of a device profile
+	 * @param profile Device profile of the phone the recordings were made with
+	 */
+	public BatchAnalyzer(DeviceProfile profile) {
+		this(new DetectorConfig.Builder(profile).build());
+	}
+	
+	/**
+	 * Create an analyzer with the same configuration as a live detector
+	 * @param config Configuration of the detector the recordings are analysed for.
+	 * Recordings are expected at its sample rate and channel layout.
+	 */
+	public BatchAnalyzer(DetectorConfig config) {
+		this.config = config;
+		frameBytes = config.getFftSize() * 2 * 2;
+	}
+	
+	/**
+	 * Select the algorithm used to compute the spectral features
+	 * @param engine WaterDetector.FEATURE_ENGINE_FFT (default), WaterDetector.FEATURE_ENGINE_GOERTZEL
+	 * or WaterDetector.FEATURE_ENGINE_FIXED_POINT
+	 */
+	public void setFeatureEngine(int engine) {
+		featureEngine = engine;
+	}
+	
+	/**
+	 * Analyse a WAV or raw PCM stream on the calling thread
+	 * @param name Name reported in the result
+	 * @param stream The audio, which is read to its end but not closed
+	 * @return The decision for every detection window
+	 * @throws IllegalArgumentException If the audio is not at the sample rate of the configuration
+	 */
+	public Result analyze(String name, InputStream stream) throws IOException {
+		PcmReader reader = new PcmReader(stream);
+		checkSampleRate(reader.getSampleRate());
+		ByteBuffer frame = ByteBuffer.allocateDirect(frameBytes).order(ByteOrder.nativeOrder());
+		Session session = new Session(reader.getSampleRate());
+		
+		try {
+			int bytesRead;
+			while ((bytesRead = reader.read(frame)) > 0) {
+				session.feed(frame, bytesRead);
+			}
+		}
+		finally {
+			session.release();
+		}
+		return new Result(name, session.windows);
+	}
+	
+	/**
+	 * Analyse the audio of a source on the calling thread until it reaches its end.
+	 * The source is started, stopped and released by this call.
+	 * @param name Name reported in the result
+	 * @param source The audio, for example a SyntheticAudioSource or ReplayAudioSource
+	 * @return The decision for every detection window
+	 * @throws IllegalArgumentException If the source is not at the sample rate of the configuration
+	 */
+	public Result analyze(String name, AudioSource source) {
+		if (source.getSampleRate() != config.getSampleRate()) {
+			//The source is handed over, release it like after an analysis
+			source.release();
+			checkSampleRate(source.getSampleRate());
+		}
+		ByteBuffer frame = ByteBuffer.allocateDirect(frameBytes).order(ByteOrder.nativeOrder());
+		Session session = new Session(source.getSampleRate());
+		
+		try {
+			if (source.start()) {
+				int bytesRead;
+				while ((bytesRead = source.read(frame, frameBytes)) != AudioSource.END_OF_STREAM) {
+					session.feed(frame, bytesRead);
+				}
+			}
+		}
+		finally {
+			source.stop();
+			source.release();
+			session.release();
+		}
+		return new Result(name, session.windows);
+	}
+	
+	/**
+	 * Analyse a WAV or raw PCM file on the calling thread, reading the samples through a memory mapping
+	 * @param file The recording
+	 * @return The decision for every detection window
+	 * @throws IllegalArgumentException If the recording is not at the sample rate of the configuration
+	 */
+	public Result analyze(File file) throws IOException {
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			PcmReader reader = new PcmReader(stream);
+			checkSampleRate(reader.getSampleRate());
+			
+			//Mapped samples are little endian and can only be handed over directly on little endian hosts
+			if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+				stream.close();
+				stream = new FileInputStream(file);
+				return analyze(file.getName(), stream);
+			}
+			
+			FileChannel channel = stream.getChannel();
+			long offset = reader.getDataOffset();
+			long length = reader.getDataLength() >= 0 ? reader.getDataLength() : channel.size() - offset;
+			length = Math.min(length, channel.size() - offset);
+			MappedByteBuffer samples = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			
+			Session session = new Session(reader.getSampleRate());
+			try {
+				for (int position = 0; position + 2 <= length; position += frameBytes) {
+					samples.limit((int)Math.min(length, position + frameBytes));
+					samples.position(position);
+					ByteBuffer frame = samples.slice();
+					session.feed(frame, frame.capacity());
+				}
+			}
+			finally {
+				session.release();
+			}
+			return new Result(file.getName(), session.windows);
+		}
+		finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Analyse recordings in parallel, one worker per available processor
+	 * @param files The recordings
+	 * @return The results in the order of the files
+	 */
+	public List<Result> analyzeAll(List<File> files) throws IOException {
+		return analyzeAll(files, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Analyse recordings in parallel
+	 * @param files The recordings
+	 * @param threads Number of worker threads
+	 * @return The results in the order of the files
+	 */
+	public List<Result> analyzeAll(List<File> files, int threads) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>(files.size());
+			for (final File file : files) {
+				futures.add(pool.submit(new Callable<Result>() {
+					@Override
+					public Result call() throws IOException {
+						return analyze(file);
+					}
+				}));
+			}
+			
+			List<Result> results = new ArrayList<Result>(files.size());
+			for (Future<Result> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Batch analysis interrupted");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * The bins and weights only apply at the configured sample rate, like in WaterDetector.onResume
+	 */
+	private void checkSampleRate(int sampleRate) {
+		if (sampleRate != config.getSampleRate()) {
+			throw new IllegalArgumentException("Unsupported sample rate " + sampleRate + ", the configuration expects "
+					+ config.getSampleRate());
+		}
+	}
+	
+	/**
+	 * State of a single analysis, mirroring the detection loop of WaterDetector
+	 */
+	private class Session {
+		final DetectionEngine engine = new DetectionEngine(config);
+		final FloatBuffer amplitudes = ByteBuffer.allocateDirect(2 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		final Decision decision = new Decision();
+		final List<Window> windows = new ArrayList<Window>();
+		final int sampleRate;
+		long frames = 0;
+		
+		Session(int sampleRate) {
+			this.sampleRate = sampleRate;
+			engine.setFeatureEngine(featureEngine);
+		}
+		
+		void feed(ByteBuffer pcm, int bytes) {
+			if (bytes <= 0) {
+				return;
+			}
+			frames++;
+			if (engine.processFrame(pcm, bytes / 2, amplitudes)) {
+				float amp1 = amplitudes.get(0);
+				float amp2 = amplitudes.get(1);
+				boolean underWater = engine.classify(amp1, amp2, decision.values);
+				
+				float[] features = new float[Decision.FEATURE_COUNT];
+				decision.getFeatures(features);
+				
+				long timeMs = frames * engine.frameSamples * 1000L / sampleRate;
+				windows.add(new Window(timeMs, underWater, features, decision.getMargin()));
+				
+				amplitudes.put(0, 0.f);
+				amplitudes.put(1, 0.f);
+			}
+		}
+		
+		void release() {
+			engine.release();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Decision holds everything the classifier computed for one detection window: the features, the baseline
+ * they are normalised by, the in air and underwater scores and their margin.
+ * The values live in a direct buffer that the native engine writes in place, so a Decision passed to
+ * a DecisionListener is reused for the next window and only valid during the call.
+ */
+public final class Decision {
+	/** Mean of the log spectrum of the first microphone */
+	public static final int FEATURE_MEAN_MIC1 = 0;
+	/** Maximum of the log spectrum of the first microphone */
+	public static final int FEATURE_MAX_MIC1 = 1;
+	/** Variance of the log spectrum of the first microphone */
+	public static final int FEATURE_VARIANCE_MIC1 = 2;
+	/** Mean of the log spectrum of the second microphone */
+	public static final int FEATURE_MEAN_MIC2 = 3;
+	/** Maximum of the log spectrum of the second microphone */
+	public static final int FEATURE_MAX_MIC2 = 4;
+	/** Variance of the log spectrum of the second microphone */
+	public static final int FEATURE_VARIANCE_MIC2 = 5;
+	/** Average absolute amplitude of the first microphone */
+	public static final int FEATURE_AMPLITUDE_MIC1 = 6;
+	/** Average absolute amplitude of the second microphone */
+	public static final int FEATURE_AMPLITUDE_MIC2 = 7;
+	/** Number of features */
+	public static final int FEATURE_COUNT = 8;
+	
+	//Layout of the buffer, as written by the native DetectionEngine::getDecision
+	static final int BASELINE = 8;
+	static final int AIR_SCORE = 16;
+	static final int UNDERWATER_SCORE = 17;
+	static final int MARGIN = 18;
+	static final int SIZE = 19;
+	
+	final FloatBuffer values = ByteBuffer.allocateDirect(SIZE * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	boolean underWater;
+	long timeNanos;
+	
+	Decision() {
+	}
+	
+	/**
+	 * @return The raw classifier decision, always false while the baseline is measured
+	 */
+	public boolean isUnderWater() {
+		return underWater;
+	}
+	
+	/**
+	 * @return System.nanoTime when the decision was made
+	 */
+	public long getTimeNanos() {
+		return timeNanos;
+	}
+	
+	/**
+	 * @param index One of the FEATURE_ constants
+	 * @return The feature of this window
+	 */
+	public float getFeature(int index) {
+		checkFeature(index);
+		return values.get(index);
+	}
+	
+	/**
+	 * @param index One of the FEATURE_ constants
+	 * @return The baseline of the feature when this window was classified, which the classifier divides the feature by.
+	 * Calibrated from the first windows after starting or restored with WaterDetector.setBaseline, then moved
+	 * towards the feature while the device is confidently in air, at the adaptation rate of the device profile
+	 */
+	public float getBaseline(int index) {
+		checkFeature(index);
+		return values.get(BASELINE + index);
+	}
+	
+	/**
+	 * @return Score of the in air output, NaN while the baseline is measured
+	 */
+	public float getAirScore() {
+		return values.get(AIR_SCORE);
+	}
+	
+	/**
+	 * @return Score of the underwater output, NaN while the baseline is measured
+	 */
+	public float getUnderwaterScore() {
+		return values.get(UNDERWATER_SCORE);
+	}
+	
+	/**
+	 * @return Underwater minus in air score, positive when underwater. The distance from 0 indicates the confidence.
+	 */
+	public float getMargin() {
+		return values.get(MARGIN);
+	}
+	
+	/**
+	 * Copy the features into an array, to keep them after the call
+	 * @param out Array of at least FEATURE_COUNT values
+	 */
+	public void getFeatures(float[] out) {
+		for (int i = 0; i < FEATURE_COUNT; i++) {
+			out[i] = values.get(i);
+		}
+	}
+	
+	private static void checkFeature(int index) {
+		if (index < 0 || index >= FEATURE_COUNT) {
+			throw new IndexOutOfBoundsException("Unknown feature " + index);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * DetectionEngine owns one instance of the native detection pipeline.
+ * Engines are independent of each other and can be used in parallel on different threads,
+ * but a single engine must only be used by one thread at a time.
+ */
+final class DetectionEngine {
+	/** Default number of samples per microphone in each spectrum frame */
+	static final int FRAME_SAMPLES = 512;
+	
+	private long handle;
+	/** Number of samples per microphone in each spectrum frame of this engine */
+	final int frameSamples;
+	
+	/**
+	 * Allocate a native engine
+	 * @param config Frame size, window and channel layout, and the device profile providing the feature bins
+	 * and classifier weights
+	 */
+	DetectionEngine(DetectorConfig config) {
+		DeviceProfile profile = config.getProfile();
+		frameSamples = config.getFftSize();
+		handle = createEngine(config.getWindowFrames(), config.getHopFrames(), frameSamples, profile.getBins(),
+				config.getChannelLayout(), profile.getClassifier());
+		setBaselineAdaptation(handle, profile.getBaselineAdaptationRate(), profile.getBaselineMinMargin());
+	}
+	
+	/**
+	 * Select the algorithm used to compute the spectral features
+	 * @param engine WaterDetector.FEATURE_ENGINE_FFT, WaterDetector.FEATURE_ENGINE_GOERTZEL
+	 * or WaterDetector.FEATURE_ENGINE_FIXED_POINT
+	 */
+	void setFeatureEngine(int engine) {
+		setFeatureEngine(handle, engine);
+	}
+	
+	/**
+	 * Drop the partially filled detection window, keeping the baseline. Call when recording resumes after a gap.
+	 */
+	void restartWindow() {
+		restartWindow(handle);
+	}
+	
+	/**
+	 * Restore a baseline saved from an earlier decision, skipping the warm-up
+	 * @param baseline Decision.FEATURE_COUNT values, see Decision.getBaseline
+	 */
+	void setBaseline(float[] baseline) {
+		setBaseline(handle, baseline);
+	}
+	
+	/**
+	 * Discard the baseline, the next windows calibrate a new one
+	 */
+	void resetBaseline() {
+		resetBaseline(handle);
+	}
+	
+	/**
+	 * Add raw recorded audio to the internal spectrogram
+	 * @param pcm Direct buffer of interleaved 16 bit stereo samples in native byte order
+	 * @param shortsRead Number of samples (both channels) in the buffer
+	 * @param amplitudes Direct buffer holding the average absolute amplitude of each microphone, updated in place
+	 * @return True if the engine can be polled for underwater state, False otherwise
+	 */
+	boolean processFrame(ByteBuffer pcm, int shortsRead, FloatBuffer amplitudes) {
+		return processFrame(handle, pcm, shortsRead, amplitudes);
+	}
+	
+	/**
+	 * Test for the device being underwater
+	 * @param amp1 Average of the absolute values of samples recorded from first microphone
+	 * @param amp2 Average of the absolute values of samples recorded from second microphone
+	 * @return True if the device is probably underwater, False otherwise
+	 */
+	boolean isUnderWater(float amp1, float amp2) {
+		return isUnderWater(handle, amp1, amp2);
+	}
+	
+	/**
+	 * Test for the device being underwater, writing the features, baseline and scores of the decision
+	 * @param amp1 Average of the absolute values of samples recorded from first microphone
+	 * @param amp2 Average of the absolute values of samples recorded from second microphone
+	 * @param decision Direct buffer of at least Decision.SIZE values in native byte order, laid out as described by Decision
+	 * @return True if the device is probably underwater, False otherwise
+	 */
+	boolean classify(float amp1, float amp2, FloatBuffer decision) {
+		return classify(handle, amp1, amp2, decision);
+	}
+	
+	/**
+	 * Copy the features, baseline and scores of the last classification
+	 * @param decision Direct buffer of at least Decision.SIZE values in native byte order, laid out as described by Decision
+	 */
+	void getDecision(FloatBuffer decision) {
+		getDecision(handle, decision);
+	}
+	
+	/**
+	 * Classify features recorded earlier instead of the last window, as in a FeatureTraceReader replay
+	 * @param decision Direct buffer of at least Decision.SIZE values in native byte order holding the recorded
+	 * features, which is overwritten with the features, baseline and scores of the new decision
+	 * @return True if the device is probably underwater, False otherwise
+	 */
+	boolean replay(FloatBuffer decision) {
+		return replay(handle, decision);
+	}
+	
+	/**
+	 * Handle of the native engine, for native code running the engine itself, see NativeAudio
+	 */
+	long getHandle() {
+		return handle;
+	}
+	
+	/**
+	 * Free the native engine. Safe to call more than once, the engine must not be in use by another thread.
+	 */
+	synchronized void release() {
+		if (handle != 0) {
+			shutdown(handle);
+			handle = 0;
+		}
+	}
+	
+	/**
+	 * Native method for allocating an engine
+	 * @return Handle of the new engine
+	 */
+	private static native long createEngine(int frames, int hop, int frameSamples, int bins, int channelLayout, float[] classifier);
+	
+	/**
+	 * Native method for freeing an engine
+	 */
+	private static native void shutdown(long handle);
+	
+	/**
+	 * Native method for selecting the feature engine
+	 */
+	private static native void setFeatureEngine(long handle, int engine);
+	
+	/**
+	 * Native method for discarding the current window
+	 */
+	private static native void restartWindow(long handle);
+	
+	/**
+	 * Native method for setting how the baseline tracks the features while in air
+	 */
+	private static native void setBaselineAdaptation(long handle, float rate, float minMargin);
+	
+	/**
+	 * Native method for restoring a baseline
+	 */
+	private static native void setBaseline(long handle, float[] baseline);
+	
+	/**
+	 * Native method for discarding the baseline
+	 */
+	private static native void resetBaseline(long handle);
+	
+	/**
+	 * Native method for building the internal spectrogram from raw recorded audio.
+	 * Separates the two microphone channels, scales them, updates the running amplitudes and adds the spectra.
+	 */
+	private static native boolean processFrame(long handle, ByteBuffer pcm, int shortsRead, FloatBuffer amplitudes);
+	
+	/**
+	 * Native method for classifying the last detection window
+	 */
+	private static native boolean isUnderWater(long handle, float amp1, float amp2);
+	
+	/**
+	 * Native method for classifying the last detection window and copying out the decision
+	 */
+	private static native boolean classify(long handle, float amp1, float amp2, FloatBuffer decision);
+	
+	/**
+	 * Native method for copying out the last decision
+	 */
+	private static native void getDecision(long handle, FloatBuffer decision);
+	
+	/**
+	 * Native method for classifying recorded features and copying out the decision
+	 */
+	private static native boolean replay(long handle, FloatBuffer decision);
+	
+	/** Load jni .so on initialization */
+	static {
+		System.loadLibrary("WaterDetection");
+	}
+}
@@ -0,0 +1,284 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package com.motim.waterdetection;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.os.Build;
+
+/**
+ * DetectorConfig sets up the audio and detection pipeline of a WaterDetector: the sample rate, the length of
+ * the spectrum frames, the detection window, the order of the microphones in the recording and the size of the
+ * recording buffer. It is created with a Builder for a DeviceProfile and checked against it, so the features
+ * keep the meaning the classifier was trained with.
+ */
+public final class DetectorConfig {
+	/** The first microphone of the profile is recorded on the left channel */
+	public static final int CHANNELS_STEREO = 0;
+	/** The first microphone of the profile is recorded on the right channel */
+	public static final int CHANNELS_STEREO_SWAPPED = 1;
+	
+	/** Largest difference between the spectrum bin width and the one of the profile, as a fraction of it */
+	static final double BIN_WIDTH_TOLERANCE = 0.1;
+	
+	private final DeviceProfile profile;
+	private final int sampleRate;
+	private final int fftSize;
+	private final int windowFrames;
+	private final int hopFrames;
+	private final int channelLayout;
+	private final int recordBufferFrames;
+	
+	private DetectorConfig(Builder builder, int windowFrames, int hopFrames) {
+		profile = builder.profile;
+		sampleRate = builder.sampleRate;
+		fftSize = builder.fftSize;
+		this.windowFrames = windowFrames;
+		this.hopFrames = hopFrames;
+		channelLayout = builder.channelLayout;
+		recordBufferFrames = builder.recordBufferFrames;
+	}
+	
+	/** @return The device profile providing the classifier weights and tuning */
+	public DeviceProfile getProfile() {
+		return profile;
+	}
+	
+	/** @return Recording and playback sample rate in Hz */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+	
+	/** @return Length of a spectrum frame and of each read from the recorder, in samples per microphone */
+	public int getFftSize() {
+		return fftSize;
+	}
+	
+	/** @return Number of spectrum frames the features are computed over */
+	public int getWindowFrames() {
+		return windowFrames;
+	}
+	
+	/** @return Number of frames between decisions */
+	public int getHopFrames() {
+		return hopFrames;
+	}
+	
+	/** @return Time between decisions in milliseconds */
+	public double getHopMs() {
+		return 1000.0 * hopFrames * fftSize / sampleRate;
+	}
+	
+	/** @return CHANNELS_STEREO or CHANNELS_STEREO_SWAPPED */
+	public int getChannelLayout() {
+		return channelLayout;
+	}
+	
+	/** @return Size of the recording buffer in frames of both channels, 0 for the platform minimum */
+	public int getRecordBufferFrames() {
+		return recordBufferFrames;
+	}
+	
+	@Override
+	public String toString() {
+		return profile.getName() + " " + sampleRate + " Hz, FFT " + fftSize + ", window " + windowFrames + " / hop " + hopFrames
+				+ (channelLayout == CHANNELS_STEREO_SWAPPED ? ", swapped" : "");
+	}
+	
+	/**
+	 * @return True if the FFT size is a power of two the native engine supports
+	 */
+	static boolean isValidFftSize(int fftSize) {
+		return fftSize >= DeviceProfile.MIN_FFT_SIZE && fftSize <= DeviceProfile.MAX_FFT_SIZE && (fftSize & (fftSize - 1)) == 0;
+	}
+	
+	/**
+	 * Builder of detector configurations. By default everything follows the profile:
+	 * its sample rate and FFT size, and its detection window in frames.
+	 */
+	public static final class Builder {
+		private final DeviceProfile profile;
+		private int sampleRate;
+		private int fftSize;
+		private int windowFrames = 0;
+		private int hopFrames = 0;
+		private double windowMs = 0;
+		private double hopMs = 0;
+		private int channelLayout = CHANNELS_STEREO;
+		private int recordBufferFrames = 0;
+		
+		/**
+		 * @param profile Device profile the configuration is for
+		 */
+		public Builder(DeviceProfile profile) {
+			if (profile == null) {
+				throw new IllegalArgumentException("Missing device profile");
+			}
+			this.profile = profile;
+			sampleRate = profile.getSampleRate();
+			fftSize = profile.getFftSize();
+		}
+		
+		/**
+		 * Follow the output of the device, so the audio is not resampled on its way to and from the hardware.
+		 * Uses the native sample rate if the profile supports it, and sizes the recording buffer in multiples
+		 * of the native buffer size. Has no effect before Android 4.2.
+		 * @param context Any context of the application
+		 */
+		public Builder useDeviceAudio(Context context) {
+			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+				return this;
+			}
+			AudioManager audioManager = (AudioManager)context.getSystemService(Context.AUDIO_SERVICE);
+			int nativeRate = parseProperty(audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE));
+			int nativeFrames = parseProperty(audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER));
+			if (nativeRate > 0 && profile.supportsSampleRate(nativeRate)) {
+				sampleRate = nativeRate;
+			}
+			if (nativeFrames > 0) {
+				//Hold two frames of audio, so one can be read while the next is recorded
+				recordBufferFrames = (2 * fftSize + nativeFrames - 1) / nativeFrames * nativeFrames;
+			}
+			return this;
+		}
+		
+		private static int parseProperty(String value) {
+			try {
+				return value != null ? Integer.parseInt(value) : 0;
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		
+		/**
+		 * @param sampleRate Recording and playback sample rate in Hz, one the profile supports
+		 */
+		public Builder setSampleRate(int sampleRate) {
+			this.sampleRate = sampleRate;
+			return this;
+		}
+		
+		/**
+		 * @param fftSize Length of a spectrum frame in samples per microphone, a power of two.
+		 * The bin width, sample rate over FFT size, must stay within 10% of the one of the profile.
+		 */
+		public Builder setFftSize(int fftSize) {
+			this.fftSize = fftSize;
+			return this;
+		}
+		
+		/**
+		 * Set the detection window in spectrum frames
+		 * @param windowFrames Number of spectrum frames the features are computed over
+		 * @param hopFrames Number of frames between decisions, equal to windowFrames for non-overlapping windows
+		 */
+		public Builder setWindowFrames(int windowFrames, int hopFrames) {
+			this.windowFrames = windowFrames;
+			this.hopFrames = hopFrames;
+			windowMs = hopMs = 0;
+			return this;
+		}
+		
+		/**
+		 * Set the detection window as a duration, rounded to whole spectrum frames when the configuration is built
+		 * @param windowMs Time the features are computed over
+		 * @param hopMs Time between decisions, equal to windowMs for non-overlapping windows
+		 */
+		public Builder setWindowMs(double windowMs, double hopMs) {
+			if (!(windowMs > 0) || !(hopMs > 0)) {
+				throw new IllegalArgumentException("Invalid window " + windowMs + " / hop " + hopMs + " ms");
+			}
+			this.windowMs = windowMs;
+			this.hopMs = hopMs;
+			windowFrames = hopFrames = 0;
+			return this;
+		}
+		
+		/**
+		 * @param channelLayout CHANNELS_STEREO (default) or CHANNELS_STEREO_SWAPPED
+		 */
+		public Builder setChannelLayout(int channelLayout) {
+			this.channelLayout = channelLayout;
+			return this;
+		}
+		
+		/**
+		 * @param recordBufferFrames Size of the recording buffer in frames of both channels,
+		 * 0 for the platform minimum. Raised to the platform minimum if smaller.
+		 */
+		public Builder setRecordBufferFrames(int recordBufferFrames) {
+			this.recordBufferFrames = recordBufferFrames;
+			return this;
+		}
+		
+		/**
+		 * @return The new configuration
+		 * @throws IllegalArgumentException If the profile doesn't support the configuration or a value is out of range
+		 */
+		public DetectorConfig build() {
+			if (!profile.supportsSampleRate(sampleRate)) {
+				throw new IllegalArgumentException("Profile " + profile.getName() + " doesn't support " + sampleRate + " Hz");
+			}
+			if (!isValidFftSize(fftSize)) {
+				throw new IllegalArgumentException("Invalid FFT size " + fftSize);
+			}
+			double binWidth = (double)sampleRate / fftSize;
+			double profileBinWidth = (double)profile.getSampleRate() / profile.getFftSize();
+			if (Math.abs(binWidth - profileBinWidth) > BIN_WIDTH_TOLERANCE * profileBinWidth) {
+				throw new IllegalArgumentException("Bin width " + binWidth + " Hz doesn't match the " + profileBinWidth
+						+ " Hz of profile " + profile.getName());
+			}
+			if (profile.getBins() > fftSize / 2 + 1) {
+				throw new IllegalArgumentException("FFT size " + fftSize + " too small for " + profile.getBins() + " bins");
+			}
+			if (channelLayout != CHANNELS_STEREO && channelLayout != CHANNELS_STEREO_SWAPPED) {
+				throw new IllegalArgumentException("Invalid channel layout " + channelLayout);
+			}
+			if (recordBufferFrames < 0) {
+				throw new IllegalArgumentException("Invalid record buffer size " + recordBufferFrames);
+			}
+			
+			int window = windowFrames;
+			int hop = hopFrames;
+			if (window == 0) {
+				//Keep the duration of the window of the profile, or the one set
+				double frameMs = 1000.0 * fftSize / sampleRate;
+				double profileFrameMs = 1000.0 * profile.getFftSize() / profile.getSampleRate();
+				window = (int)Math.round((windowMs > 0 ? windowMs : profile.getWindowFrames() * profileFrameMs) / frameMs);
+				hop = (int)Math.round((hopMs > 0 ? hopMs : profile.getHopFrames() * profileFrameMs) / frameMs);
+				window = Math.max(1, window);
+				hop = Math.max(1, Math.min(hop, window));
+			}
+			if (window < 1 || hop < 1 || hop > window) {
+				throw new IllegalArgumentException("Invalid window " + window + " / hop " + hop);
+			}
+			return new DetectorConfig(this, window, hop);
+		}
+	}
+}
@@ -0,0 +1,241 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DetectorMetrics collects timing and health figures of a WaterDetector while it runs.
+ * The detection thread updates them without locking, any thread can take a snapshot for telemetry.
+ */
+public final class DetectorMetrics {
+	/**
+	 * Distribution summarises one histogram. Percentiles are the upper bound of the bucket they fall in.
+	 * All statistics are NaN while the count is 0.
+	 */
+	public static final class Distribution {
+		public final long count;
+		public final double mean;
+		public final double min;
+		public final double max;
+		public final double p50;
+		public final double p90;
+		public final double p99;
+		/** Inclusive upper bounds of the buckets, the last bucket has no upper bound */
+		public final double[] bucketBounds;
+		/** Number of values in each bucket, one more than bucketBounds */
+		public final long[] bucketCounts;
+		
+		Distribution(long count, double mean, double min, double max, double p50, double p90, double p99, double[] bucketBounds, long[] bucketCounts) {
+			this.count = count;
+			this.mean = mean;
+			this.min = min;
+			this.max = max;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.bucketBounds = bucketBounds;
+			this.bucketCounts = bucketCounts;
+		}
+		
+		private void export(String name, Map<String, Number> out) {
+			out.put(name + ".count", count);
+			out.put(name + ".mean", mean);
+			out.put(name + ".min", min);
+			out.put(name + ".max", max);
+			out.put(name + ".p50", p50);
+			out.put(name + ".p90", p90);
+			out.put(name + ".p99", p99);
+		}
+	}
+	
+	/**
+	 * Snapshot holds the metrics at one point in time
+	 */
+	public static final class Snapshot {
+		/** Time covered by the snapshot, since the detector was created or the metrics were reset */
+		public final long elapsedMs;
+		/** Frames handed to the native engine */
+		public final long frames;
+		/** Reads returning fewer bytes than requested, the source had less audio ready than a frame */
+		public final long shortReads;
+		/** Reads that failed */
+		public final long readErrors;
+		/**
+		 * Frames whose native processing, timed from the end of the read, took longer than the audio they hold,
+		 * so the recorder falls behind. The read is not counted, it mostly waits for the audio to arrive.
+		 */
+		public final long overruns;
+		/** Classifier decisions */
+		public final long decisions;
+		/** Decisions per second of elapsed time */
+		public final double decisionsPerSecond;
+		/** Reported changes between in air and underwater, not counting the first state after resuming */
+		public final long transitions;
+		/** Submersion events merged into a later event or skipped because they repeated the last one */
+		public final long coalescedEvents;
+		/** Submersion events and audio errors lost because the executor rejected them */
+		public final long droppedEvents;
+		
+		/** Time blocked in AudioSource.read per frame, in nanoseconds */
+		public final Distribution readLatencyNs;
+		/** Time spent in the native engine per frame, including the JNI call, in nanoseconds */
+		public final Distribution processingNs;
+		/** Underwater minus in air score of each decision, positive values decide underwater */
+		public final Distribution margin;
+		/** Time from the first decision for a new state until it is reported, in milliseconds */
+		public final Distribution transitionLatencyMs;
+		/** Time from reporting a state until the listener is called, in microseconds */
+		public final Distribution deliveryLatencyUs;
+		/** Time spent in onResume, setting up the audio and starting the workers, in microseconds */
+		public final Distribution resumeCallUs;
+		/** Time from onResume until the first decision with a known baseline, in milliseconds */
+		public final Distribution resumeLatencyMs;
+		
+		Snapshot(DetectorMetrics metrics, long nowNanos) {
+			elapsedMs = (nowNanos - metrics.startNanos) / 1000000L;
+			frames = metrics.frames.get();
+			shortReads = metrics.shortReads.get();
+			readErrors = metrics.readErrors.get();
+			overruns = metrics.overruns.get();
+			decisions = metrics.decisions.get();
+			decisionsPerSecond = elapsedMs > 0 ? decisions * 1000.0 / elapsedMs : 0;
+			transitions = metrics.transitions.get();
+			coalescedEvents = metrics.coalescedEvents.get();
+			droppedEvents = metrics.droppedEvents.get();
+			readLatencyNs = metrics.readLatency.snapshot();
+			processingNs = metrics.processing.snapshot();
+			margin = metrics.margin.snapshot();
+			transitionLatencyMs = metrics.transitionLatency.snapshot();
+			deliveryLatencyUs = metrics.deliveryLatency.snapshot();
+			resumeCallUs = metrics.resumeCall.snapshot();
+			resumeLatencyMs = metrics.resumeLatency.snapshot();
+		}
+		
+		/**
+		 * Flatten the snapshot into named values for telemetry, for example "readLatencyNs.p99".
+		 * Bucket counts are left out.
+		 */
+		public Map<String, Number> toMap() {
+			Map<String, Number> out = new LinkedHashMap<String, Number>();
+			out.put("elapsedMs", elapsedMs);
+			out.put("frames", frames);
+			out.put("shortReads", shortReads);
+			out.put("readErrors", readErrors);
+			out.put("overruns", overruns);
+			out.put("decisions", decisions);
+			out.put("decisionsPerSecond", decisionsPerSecond);
+			out.put("transitions", transitions);
+			out.put("coalescedEvents", coalescedEvents);
+			out.put("droppedEvents", droppedEvents);
+			readLatencyNs.export("readLatencyNs", out);
+			processingNs.export("processingNs", out);
+			margin.export("margin", out);
+			transitionLatencyMs.export("transitionLatencyMs", out);
+			deliveryLatencyUs.export("deliveryLatencyUs", out);
+			resumeCallUs.export("resumeCallUs", out);
+			resumeLatencyMs.export("resumeLatencyMs", out);
+			return out;
+		}
+		
+		@Override
+		public String toString() {
+			return toMap().toString();
+		}
+	}
+	
+	private volatile long startNanos = System.nanoTime();
+	
+	final AtomicLong frames = new AtomicLong();
+	final AtomicLong shortReads = new AtomicLong();
+	final AtomicLong readErrors = new AtomicLong();
+	final AtomicLong overruns = new AtomicLong();
+	final AtomicLong decisions = new AtomicLong();
+	final AtomicLong transitions = new AtomicLong();
+	final AtomicLong coalescedEvents = new AtomicLong();
+	final AtomicLong droppedEvents = new AtomicLong();
+	
+	//1 us to about 1 s
+	final Histogram readLatency = Histogram.exponential(1000, 21);
+	final Histogram processing = Histogram.exponential(1000, 21);
+	//-10 to 10 in steps of 0.5, recorded in thousandths
+	final Histogram margin = Histogram.linear(-10000, 500, 41, 1000);
+	//In milliseconds, 1 ms to about 16 s
+	final Histogram transitionLatency = Histogram.exponential(1, 15);
+	//In microseconds, 1 us to about 1 s
+	final Histogram deliveryLatency = Histogram.exponential(1, 21);
+	//In microseconds, 1 us to about 1 s
+	final Histogram resumeCall = Histogram.exponential(1, 21);
+	//In milliseconds, 1 ms to about 16 s
+	final Histogram resumeLatency = Histogram.exponential(1, 15);
+	
+	DetectorMetrics() {
+	}
+	
+	/**
+	 * @return The current values of all metrics
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this, System.nanoTime());
+	}
+	
+	/**
+	 * Set all metrics back to zero and restart the elapsed time
+	 */
+	public void reset() {
+		frames.set(0);
+		shortReads.set(0);
+		readErrors.set(0);
+		overruns.set(0);
+		decisions.set(0);
+		transitions.set(0);
+		coalescedEvents.set(0);
+		droppedEvents.set(0);
+		readLatency.reset();
+		processing.reset();
+		margin.reset();
+		transitionLatency.reset();
+		deliveryLatency.reset();
+		resumeCall.reset();
+		resumeLatency.reset();
+		startNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Record a margin, ignoring the NaN of decisions made before the baseline is known
+	 */
+	void recordMargin(float value) {
+		if (!Float.isNaN(value)) {
+			margin.record(Math.round(value * 1000.0));
+		}
+	}
+}
@@ -0,0 +1,412 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package com.motim.waterdetection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DeviceProfile holds everything the detector needs to know about one kind of device: the devices it applies to,
+ * the classifier weights trained for its microphones and speaker, and the tuning values of the detection pipeline.
+ * 
+ * Profiles are immutable and created with a Builder, or loaded by DeviceProfileRegistry.
+ */
+public final class DeviceProfile {
+	/** Number of classifier weights per class: one per feature, then one for the relative amplitude difference */
+	public static final int WEIGHT_COUNT = Decision.FEATURE_COUNT + 1;
+	/** Smallest supported spectrum frame, in samples per microphone */
+	public static final int MIN_FFT_SIZE = 64;
+	/** Largest supported spectrum frame, in samples per microphone */
+	public static final int MAX_FFT_SIZE = 4096;
+	
+	//Layout of the classifier weights handed to the native engine
+	private static final int CLASSIFIER_AIR_BIAS_SCALE = 0;
+	private static final int CLASSIFIER_AIR_BIAS = 1;
+	private static final int CLASSIFIER_UNDERWATER_BIAS = 2;
+	private static final int CLASSIFIER_AIR_WEIGHTS = 3;
+	private static final int CLASSIFIER_UNDERWATER_WEIGHTS = CLASSIFIER_AIR_WEIGHTS + WEIGHT_COUNT;
+	private static final int CLASSIFIER_SIZE = CLASSIFIER_UNDERWATER_WEIGHTS + WEIGHT_COUNT;
+	
+	private final String name;
+	private final String brand;
+	private final List<String> models;
+	private final int sampleRate;
+	private final int[] supportedSampleRates;
+	private final int fftSize;
+	private final int windowFrames;
+	private final int hopFrames;
+	private final int bins;
+	private final int submergeHysteresisMs;
+	private final int surfaceHysteresisMs;
+	private final float baselineAdaptationRate;
+	private final float baselineMinMargin;
+	private final float[] classifier;
+	
+	private DeviceProfile(Builder builder) {
+		name = builder.name;
+		brand = builder.brand;
+		models = Collections.unmodifiableList(new ArrayList<String>(builder.models));
+		sampleRate = builder.sampleRate;
+		supportedSampleRates = builder.supportedSampleRates.clone();
+		fftSize = builder.fftSize;
+		windowFrames = builder.windowFrames;
+		hopFrames = builder.hopFrames;
+		bins = builder.bins;
+		submergeHysteresisMs = builder.submergeHysteresisMs;
+		surfaceHysteresisMs = builder.surfaceHysteresisMs;
+		baselineAdaptationRate = builder.baselineAdaptationRate;
+		baselineMinMargin = builder.baselineMinMargin;
+		
+		classifier = new float[CLASSIFIER_SIZE];
+		classifier[CLASSIFIER_AIR_BIAS_SCALE] = builder.airBiasScale;
+		classifier[CLASSIFIER_AIR_BIAS] = builder.airBias;
+		classifier[CLASSIFIER_UNDERWATER_BIAS] = builder.underwaterBias;
+		System.arraycopy(builder.airWeights, 0, classifier, CLASSIFIER_AIR_WEIGHTS, WEIGHT_COUNT);
+		System.arraycopy(builder.underwaterWeights, 0, classifier, CLASSIFIER_UNDERWATER_WEIGHTS, WEIGHT_COUNT);
+	}
+	
+	/** @return Unique name of the profile, for example "xperia_z" */
+	public String getName() {
+		return name;
+	}
+	
+	/** @return Brand of the devices, as reported by android.os.Build.BRAND */
+	public String getBrand() {
+		return brand;
+	}
+	
+	/** @return Models the profile applies to, as reported by android.os.Build.MODEL */
+	public List<String> getModels() {
+		return models;
+	}
+	
+	/** @return Recording and playback sample rate in Hz the classifier was trained at */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+	
+	/** @return Copy of the sample rates in Hz the classifier works at, including getSampleRate */
+	public int[] getSupportedSampleRates() {
+		return supportedSampleRates.clone();
+	}
+	
+	/**
+	 * @param rate Sample rate in Hz
+	 * @return True if the classifier works at the given sample rate
+	 */
+	public boolean supportsSampleRate(int rate) {
+		for (int supported: supportedSampleRates) {
+			if (supported == rate) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/** @return Length of the spectrum frames the classifier was trained with, in samples per microphone */
+	public int getFftSize() {
+		return fftSize;
+	}
+	
+	/** @return Number of spectrum frames the features are computed over */
+	public int getWindowFrames() {
+		return windowFrames;
+	}
+	
+	/** @return Number of frames between decisions */
+	public int getHopFrames() {
+		return hopFrames;
+	}
+	
+	/** @return Number of the lowest bins of each spectrum the features are computed from */
+	public int getBins() {
+		return bins;
+	}
+	
+	/** @return Time the device must be classified as underwater before a submersion is reported */
+	public int getSubmergeHysteresisMs() {
+		return submergeHysteresisMs;
+	}
+	
+	/** @return Time the device must be classified as in air before a surfacing is reported */
+	public int getSurfaceHysteresisMs() {
+		return surfaceHysteresisMs;
+	}
+	
+	/** @return Weight of each confidently in air window in the baseline, 0 if the baseline is not tracked */
+	public float getBaselineAdaptationRate() {
+		return baselineAdaptationRate;
+	}
+	
+	/** @return Margin by which the in air score must exceed the underwater score for the baseline to be updated */
+	public float getBaselineMinMargin() {
+		return baselineMinMargin;
+	}
+	
+	/** @return Scale-factor of the in air bias. Below one for less false negatives and above one for less false positives */
+	public float getAirBiasScale() {
+		return classifier[CLASSIFIER_AIR_BIAS_SCALE];
+	}
+	
+	/** @return Bias of the in air score */
+	public float getAirBias() {
+		return classifier[CLASSIFIER_AIR_BIAS];
+	}
+	
+	/** @return Bias of the underwater score */
+	public float getUnderwaterBias() {
+		return classifier[CLASSIFIER_UNDERWATER_BIAS];
+	}
+	
+	/** @return Copy of the WEIGHT_COUNT weights of the in air score */
+	public float[] getAirWeights() {
+		return copyWeights(CLASSIFIER_AIR_WEIGHTS);
+	}
+	
+	/** @return Copy of the WEIGHT_COUNT weights of the underwater score */
+	public float[] getUnderwaterWeights() {
+		return copyWeights(CLASSIFIER_UNDERWATER_WEIGHTS);
+	}
+	
+	private float[] copyWeights(int offset) {
+		float[] weights = new float[WEIGHT_COUNT];
+		System.arraycopy(classifier, offset, weights, 0, WEIGHT_COUNT);
+		return weights;
+	}
+	
+	/**
+	 * @return The classifier weights in the layout expected by the native engine, not to be modified
+	 */
+	float[] getClassifier() {
+		return classifier;
+	}
+	
+	@Override
+	public String toString() {
+		return name + " " + brand + " " + models;
+	}
+	
+	/**
+	 * Builder of device profiles. The tuning values default to those of WaterDetector,
+	 * the name, brand and classifier weights must be set.
+	 */
+	public static final class Builder {
+		private final String name;
+		private String brand;
+		private final List<String> models = new ArrayList<String>();
+		private int sampleRate = 44100;
+		private int[] supportedSampleRates = { 44100 };
+		private int fftSize = DetectionEngine.FRAME_SAMPLES;
+		private int windowFrames = WaterDetector.DEFAULT_WINDOW_FRAMES;
+		private int hopFrames = WaterDetector.DEFAULT_WINDOW_FRAMES;
+		private int bins = 3;
+		private int submergeHysteresisMs = WaterDetector.DEFAULT_SUBMERGE_HYSTERESIS_MS;
+		private int surfaceHysteresisMs = WaterDetector.DEFAULT_SURFACE_HYSTERESIS_MS;
+		private float baselineAdaptationRate = WaterDetector.DEFAULT_BASELINE_ADAPTATION_RATE;
+		private float baselineMinMargin = WaterDetector.DEFAULT_BASELINE_MIN_MARGIN;
+		private float airBiasScale = 1.f;
+		private float airBias;
+		private float underwaterBias;
+		private float[] airWeights;
+		private float[] underwaterWeights;
+		
+		/**
+		 * @param name Unique name of the profile, a profile registered later under the same name replaces it
+		 */
+		public Builder(String name) {
+			if (name == null || name.length() == 0) {
+				throw new IllegalArgumentException("Missing profile name");
+			}
+			this.name = name;
+		}
+		
+		/**
+		 * Start from an existing profile, for example to change its tuning values
+		 * @param name Unique name of the new profile
+		 * @param profile Profile to copy the devices, tuning values and weights from
+		 */
+		public Builder(String name, DeviceProfile profile) {
+			this(name);
+			brand = profile.brand;
+			models.addAll(profile.models);
+			sampleRate = profile.sampleRate;
+			supportedSampleRates = profile.supportedSampleRates.clone();
+			fftSize = profile.fftSize;
+			windowFrames = profile.windowFrames;
+			hopFrames = profile.hopFrames;
+			bins = profile.bins;
+			submergeHysteresisMs = profile.submergeHysteresisMs;
+			surfaceHysteresisMs = profile.surfaceHysteresisMs;
+			baselineAdaptationRate = profile.baselineAdaptationRate;
+			baselineMinMargin = profile.baselineMinMargin;
+			airBiasScale = profile.getAirBiasScale();
+			airBias = profile.getAirBias();
+			underwaterBias = profile.getUnderwaterBias();
+			airWeights = profile.getAirWeights();
+			underwaterWeights = profile.getUnderwaterWeights();
+		}
+		
+		/**
+		 * @param brand Brand of the devices, as reported by android.os.Build.BRAND
+		 * @param models Models the profile applies to, as reported by android.os.Build.MODEL. Replaces any models set before.
+		 */
+		public Builder setDevices(String brand, String... models) {
+			this.brand = brand;
+			this.models.clear();
+			this.models.addAll(Arrays.asList(models));
+			return this;
+		}
+		
+		/**
+		 * @param sampleRate Recording and playback sample rate in Hz the classifier was trained at
+		 * @param otherRates Further sample rates the classifier has been verified to work at
+		 */
+		public Builder setSampleRate(int sampleRate, int... otherRates) {
+			this.sampleRate = sampleRate;
+			supportedSampleRates = new int[otherRates.length + 1];
+			supportedSampleRates[0] = sampleRate;
+			System.arraycopy(otherRates, 0, supportedSampleRates, 1, otherRates.length);
+			return this;
+		}
+		
+		/**
+		 * @param fftSize Length of the spectrum frames the classifier was trained with, a power of two
+		 * between MIN_FFT_SIZE and MAX_FFT_SIZE samples per microphone
+		 */
+		public Builder setFftSize(int fftSize) {
+			this.fftSize = fftSize;
+			return this;
+		}
+		
+		/**
+		 * @param windowFrames Number of spectrum frames the features are computed over
+		 * @param hopFrames Number of frames between decisions, equal to windowFrames for non-overlapping windows
+		 */
+		public Builder setWindow(int windowFrames, int hopFrames) {
+			this.windowFrames = windowFrames;
+			this.hopFrames = hopFrames;
+			return this;
+		}
+		
+		/**
+		 * @param bins Number of the lowest bins of each spectrum the features are computed from, at most fftSize / 2 + 1
+		 */
+		public Builder setBins(int bins) {
+			this.bins = bins;
+			return this;
+		}
+		
+		/**
+		 * @param submergeMs Time the device must be classified as underwater before a submersion is reported
+		 * @param surfaceMs Time the device must be classified as in air before a surfacing is reported
+		 */
+		public Builder setHysteresis(int submergeMs, int surfaceMs) {
+			submergeHysteresisMs = submergeMs;
+			surfaceHysteresisMs = surfaceMs;
+			return this;
+		}
+		
+		/**
+		 * Set how the baseline the features are normalised by follows slow changes of the surroundings.
+		 * After the warm-up each decision that is in air by at least minMargin moves the baseline towards
+		 * the features of its window by rate, an exponential moving average over about 1 / rate such windows.
+		 * @param rate Weight of a window between 0 and 1, 0 keeps the baseline of the warm-up
+		 * @param minMargin Margin by which the in air score must exceed the underwater score, at least 0
+		 */
+		public Builder setBaselineAdaptation(float rate, float minMargin) {
+			baselineAdaptationRate = rate;
+			baselineMinMargin = minMargin;
+			return this;
+		}
+		
+		/**
+		 * Set the weights of the linear classifier, as trained on the desktop
+		 * @param airBias Bias of the in air score
+		 * @param airWeights WEIGHT_COUNT weights of the in air score
+		 * @param underwaterBias Bias of the underwater score
+		 * @param underwaterWeights WEIGHT_COUNT weights of the underwater score
+		 */
+		public Builder setClassifier(float airBias, float[] airWeights, float underwaterBias, float[] underwaterWeights) {
+			if (airWeights == null || airWeights.length != WEIGHT_COUNT
+					|| underwaterWeights == null || underwaterWeights.length != WEIGHT_COUNT) {
+				throw new IllegalArgumentException("Expected " + WEIGHT_COUNT + " weights per class");
+			}
+			this.airBias = airBias;
+			this.underwaterBias = underwaterBias;
+			this.airWeights = airWeights.clone();
+			this.underwaterWeights = underwaterWeights.clone();
+			return this;
+		}
+		
+		/**
+		 * @param airBiasScale Scale-factor of the in air bias, 1 by default.
+		 * Below one for less false negatives and above one for less false positives.
+		 */
+		public Builder setAirBiasScale(float airBiasScale) {
+			this.airBiasScale = airBiasScale;
+			return this;
+		}
+		
+		/**
+		 * @return The new profile
+		 * @throws IllegalArgumentException If a value is missing or out of range
+		 */
+		public DeviceProfile build() {
+			if (brand == null || brand.length() == 0) {
+				throw new IllegalArgumentException("Missing brand of profile " + name);
+			}
+			if (airWeights == null) {
+				throw new IllegalArgumentException("Missing classifier of profile " + name);
+			}
+			for (int rate: supportedSampleRates) {
+				if (rate <= 0) {
+					throw new IllegalArgumentException("Invalid sample rate " + rate + " of profile " + name);
+				}
+			}
+			if (!DetectorConfig.isValidFftSize(fftSize)) {
+				throw new IllegalArgumentException("Invalid FFT size " + fftSize + " of profile " + name);
+			}
+			if (windowFrames < 1 || hopFrames < 1 || hopFrames > windowFrames) {
+				throw new IllegalArgumentException("Invalid window " + windowFrames + " / hop " + hopFrames + " of profile " + name);
+			}
+			if (bins < 1 || bins > fftSize / 2 + 1) {
+				throw new IllegalArgumentException("Invalid bins " + bins + " of profile " + name);
+			}
+			if (submergeHysteresisMs < 0 || surfaceHysteresisMs < 0) {
+				throw new IllegalArgumentException("Invalid hysteresis of profile " + name);
+			}
+			if (!(baselineAdaptationRate >= 0.f && baselineAdaptationRate <= 1.f) || !(baselineMinMargin >= 0.f)) {
+				throw new IllegalArgumentException("Invalid baseline adaptation of profile " + name);
+			}
+			return new DeviceProfile(this);
+		}
+	}
+}
@@ -0,0 +1,272 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package com.motim.waterdetection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * DeviceProfileRegistry maps devices to their DeviceProfile.
+ * 
+ * The default registry holds the profiles of the supported devices, loaded from device_profiles.json next to this
+ * class the first time it is used. Supporting a new device only needs a new entry there, or a profile registered
+ * at runtime, the native library is not involved. Lookups by brand and model are hash lookups and may run on
+ * any thread, also while profiles are being registered.
+ * 
+ * The profiles file is a JSON object with a "profiles" array. Each profile has a "name", a "brand", the "models"
+ * it applies to and a "classifier" object with "airBias", "airWeights", "underwaterBias", "underwaterWeights"
+ * and optionally "airBiasScale". The tuning values "sampleRate", "supportedSampleRates" (further rates the
+ * classifier works at), "fftSize", "windowFrames", "hopFrames", "bins", "submergeHysteresisMs",
+ * "surfaceHysteresisMs", "baselineAdaptationRate" and "baselineMinMargin" are optional. A top level "fallback"
+ * names the profile used for devices without one.
+ */
+public final class DeviceProfileRegistry {
+	static final String PROFILES_RESOURCE = "device_profiles.json";
+	
+	//Keys are the lower case brand and the model, see deviceKey
+	private final Map<String, DeviceProfile> byDevice = new ConcurrentHashMap<String, DeviceProfile>();
+	private final Map<String, DeviceProfile> byName = new ConcurrentHashMap<String, DeviceProfile>();
+	private volatile String fallbackName;
+	
+	//Loaded by the class loader on first use of getDefault
+	private static class DefaultHolder {
+		static final DeviceProfileRegistry INSTANCE = loadDefault();
+	}
+	
+	/**
+	 * Create an empty registry
+	 */
+	public DeviceProfileRegistry() {
+	}
+	
+	/**
+	 * @return The registry used by WaterDetector and XperiaDetector, holding the built in profiles
+	 * and any registered to it since
+	 */
+	public static DeviceProfileRegistry getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+	
+	private static DeviceProfileRegistry loadDefault() {
+		DeviceProfileRegistry registry = new DeviceProfileRegistry();
+		InputStream in = DeviceProfileRegistry.class.getResourceAsStream(PROFILES_RESOURCE);
+		if (in == null) {
+			throw new IllegalStateException("Missing " + PROFILES_RESOURCE);
+		}
+		try {
+			registry.load(in);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Can't load " + PROFILES_RESOURCE + ": " + e.getMessage());
+		}
+		finally {
+			try {
+				in.close();
+			}
+			catch (IOException e) {
+				//Nothing to do
+			}
+		}
+		return registry;
+	}
+	
+	/**
+	 * Register the profiles of a profiles file, replacing registered profiles with the same names.
+	 * The fallback profile is replaced if the file names one.
+	 * @param in Stream of the UTF-8 encoded JSON file, read to the end but not closed
+	 * @throws IOException If the stream can't be read or doesn't hold valid profiles, no profiles are registered then
+	 */
+	public void load(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] chunk = new byte[4096];
+		int read;
+		while ((read = in.read(chunk)) > 0) {
+			bytes.write(chunk, 0, read);
+		}
+		
+		DeviceProfile[] profiles;
+		String fallback;
+		try {
+			JSONObject root = new JSONObject(bytes.toString("UTF-8"));
+			JSONArray entries = root.getJSONArray("profiles");
+			profiles = new DeviceProfile[entries.length()];
+			for (int i = 0; i < profiles.length; i++) {
+				profiles[i] = parseProfile(entries.getJSONObject(i));
+			}
+			fallback = root.optString("fallback", null);
+		}
+		catch (JSONException e) {
+			throw malformed(e);
+		}
+		catch (IllegalArgumentException e) {
+			throw malformed(e);
+		}
+		if (fallback != null && !byName.containsKey(fallback) && !contains(profiles, fallback)) {
+			throw new IOException("Invalid device profiles: unknown fallback " + fallback);
+		}
+		
+		for (DeviceProfile profile: profiles) {
+			register(profile);
+		}
+		if (fallback != null) {
+			setFallback(fallback);
+		}
+	}
+	
+	private static boolean contains(DeviceProfile[] profiles, String name) {
+		for (DeviceProfile profile: profiles) {
+			if (profile.getName().equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static IOException malformed(Exception cause) {
+		IOException e = new IOException("Invalid device profiles: " + cause.getMessage());
+		e.initCause(cause);
+		return e;
+	}
+	
+	private static DeviceProfile parseProfile(JSONObject entry) throws JSONException {
+		DeviceProfile.Builder builder = new DeviceProfile.Builder(entry.getString("name"));
+		
+		JSONArray models = entry.getJSONArray("models");
+		String[] modelNames = new String[models.length()];
+		for (int i = 0; i < modelNames.length; i++) {
+			modelNames[i] = models.getString(i);
+		}
+		builder.setDevices(entry.getString("brand"), modelNames);
+		
+		JSONArray otherRates = entry.optJSONArray("supportedSampleRates");
+		int[] rates = new int[otherRates != null ? otherRates.length() : 0];
+		for (int i = 0; i < rates.length; i++) {
+			rates[i] = otherRates.getInt(i);
+		}
+		builder.setSampleRate(entry.optInt("sampleRate", 44100), rates);
+		builder.setFftSize(entry.optInt("fftSize", DetectionEngine.FRAME_SAMPLES));
+		int windowFrames = entry.optInt("windowFrames", WaterDetector.DEFAULT_WINDOW_FRAMES);
+		builder.setWindow(windowFrames, entry.optInt("hopFrames", windowFrames));
+		builder.setBins(entry.optInt("bins", 3));
+		builder.setHysteresis(entry.optInt("submergeHysteresisMs", WaterDetector.DEFAULT_SUBMERGE_HYSTERESIS_MS),
+				entry.optInt("surfaceHysteresisMs", WaterDetector.DEFAULT_SURFACE_HYSTERESIS_MS));
+		builder.setBaselineAdaptation((float)entry.optDouble("baselineAdaptationRate", WaterDetector.DEFAULT_BASELINE_ADAPTATION_RATE),
+				(float)entry.optDouble("baselineMinMargin", WaterDetector.DEFAULT_BASELINE_MIN_MARGIN));
+		
+		JSONObject classifier = entry.getJSONObject("classifier");
+		builder.setClassifier((float)classifier.getDouble("airBias"), parseWeights(classifier.getJSONArray("airWeights")),
+				(float)classifier.getDouble("underwaterBias"), parseWeights(classifier.getJSONArray("underwaterWeights")));
+		builder.setAirBiasScale((float)classifier.optDouble("airBiasScale", 1.0));
+		return builder.build();
+	}
+	
+	private static float[] parseWeights(JSONArray values) throws JSONException {
+		float[] weights = new float[values.length()];
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = (float)values.getDouble(i);
+		}
+		return weights;
+	}
+	
+	/**
+	 * Register a profile for its devices. It replaces a registered profile with the same name,
+	 * and takes over devices of other profiles it lists too.
+	 * @param profile The profile to register
+	 */
+	public synchronized void register(DeviceProfile profile) {
+		DeviceProfile replaced = byName.put(profile.getName(), profile);
+		if (replaced != null) {
+			for (String model: replaced.getModels()) {
+				byDevice.remove(deviceKey(replaced.getBrand(), model));
+			}
+		}
+		for (String model: profile.getModels()) {
+			byDevice.put(deviceKey(profile.getBrand(), model), profile);
+		}
+	}
+	
+	/**
+	 * Look up the profile of a device
+	 * @param brand Brand of the device, as reported by android.os.Build.BRAND, ignoring case
+	 * @param model Model of the device, as reported by android.os.Build.MODEL
+	 * @return The profile, or null if the device isn't known
+	 */
+	public DeviceProfile find(String brand, String model) {
+		if (brand == null || model == null) {
+			return null;
+		}
+		return byDevice.get(deviceKey(brand, model));
+	}
+	
+	/**
+	 * @return The profile of the device this runs on, or null if the device isn't known
+	 */
+	public DeviceProfile findForThisDevice() {
+		return find(android.os.Build.BRAND, android.os.Build.MODEL);
+	}
+	
+	/**
+	 * @param name Name of the profile
+	 * @return The profile with the given name, or null if there is none
+	 */
+	public DeviceProfile get(String name) {
+		return byName.get(name);
+	}
+	
+	/**
+	 * Choose the profile used for devices that don't have one
+	 * @param name Name of a registered profile
+	 */
+	public synchronized void setFallback(String name) {
+		if (!byName.containsKey(name)) {
+			throw new IllegalArgumentException("Unknown profile " + name);
+		}
+		fallbackName = name;
+	}
+	
+	/**
+	 * @return The profile used for devices that don't have one, or null if none was chosen
+	 */
+	public DeviceProfile getFallback() {
+		String name = fallbackName;
+		return name != null ? byName.get(name) : null;
+	}
+	
+	private static String deviceKey(String brand, String model) {
+		return brand.toLowerCase(Locale.US) + '/' + model;
+	}
+}
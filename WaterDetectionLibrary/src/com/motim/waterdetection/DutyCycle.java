@@ -0,0 +1,76 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+/**
+ * DutyCycle configures the low power mode of WaterDetector. Instead of playing the tone and recording
+ * continuously, the detector listens in short bursts and sleeps in between, with the speaker and microphones off.
+ * 
+ * While the submersion state is stable the sleep time doubles after every burst, from minOffMs up to maxOffMs.
+ * After a state change or a jump in the recorded amplitude it drops back to minOffMs, and a burst is extended
+ * until a pending state change has been confirmed or rejected. Detection latency grows with the sleep time.
+ */
+public class DutyCycle {
+	/** Default ratio between the amplitudes of consecutive decisions that is treated as a jump, about 6 dB */
+	public static final float DEFAULT_AMPLITUDE_JUMP = 2.f;
+	
+	final int onMs;
+	final int minOffMs;
+	final int maxOffMs;
+	final float amplitudeJump;
+	
+	/**
+	 * @param onMs Minimum listening time of a burst, extended to at least one detection window
+	 * @param minOffMs Sleep time after a change
+	 * @param maxOffMs Longest sleep time while the state is stable
+	 */
+	public DutyCycle(int onMs, int minOffMs, int maxOffMs) {
+		this(onMs, minOffMs, maxOffMs, DEFAULT_AMPLITUDE_JUMP);
+	}
+	
+	/**
+	 * @param onMs Minimum listening time of a burst, extended to at least one detection window
+	 * @param minOffMs Sleep time after a change
+	 * @param maxOffMs Longest sleep time while the state is stable
+	 * @param amplitudeJump Ratio between the amplitudes of consecutive decisions, up or down, that resets the sleep time
+	 */
+	public DutyCycle(int onMs, int minOffMs, int maxOffMs, float amplitudeJump) {
+		if (onMs < 0 || minOffMs < 0 || maxOffMs < minOffMs) {
+			throw new IllegalArgumentException("Invalid duty cycle " + onMs + " / " + minOffMs + "-" + maxOffMs);
+		}
+		if (!(amplitudeJump > 1.f)) {
+			throw new IllegalArgumentException("Invalid amplitude jump " + amplitudeJump);
+		}
+		this.onMs = onMs;
+		this.minOffMs = minOffMs;
+		this.maxOffMs = maxOffMs;
+		this.amplitudeJump = amplitudeJump;
+	}
+}
@@ -0,0 +1,115 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+/**
+ * DutyCycleScheduler decides when a duty-cycled detector ends a burst and how long it sleeps,
+ * and keeps track of the time spent listening. Driven by the detection thread, the duty cycle can be read from any thread.
+ */
+final class DutyCycleScheduler {
+	private final DutyCycle cycle;
+	
+	private long startNanos;
+	private long burstStartNanos;
+	private long onNanos;
+	private boolean listening;
+	
+	private int offMs;
+	private boolean eventful;
+	private float lastAmplitude;
+	
+	DutyCycleScheduler(DutyCycle cycle) {
+		this.cycle = cycle;
+	}
+	
+	/**
+	 * Start scheduling, listening first
+	 */
+	synchronized void start(long nowNanos) {
+		startNanos = nowNanos;
+		burstStartNanos = nowNanos;
+		onNanos = 0;
+		listening = true;
+		offMs = cycle.minOffMs;
+		//Nothing is known about the state yet, the first sleep is the shortest
+		eventful = true;
+		lastAmplitude = 0;
+	}
+	
+	/**
+	 * Account for a decision of the current burst
+	 * @param pending True if the decision disagrees with the reported state, or no state has been reported yet
+	 * @param changed True if the decision caused a new state to be reported
+	 * @param amplitude Average amplitude of the decision window
+	 * @return True if the burst is over and the detector should sleep for getOffMs
+	 */
+	synchronized boolean onDecision(boolean pending, boolean changed, float amplitude, long nowNanos) {
+		boolean jump = lastAmplitude > 0 && amplitude > 0
+				&& (amplitude > lastAmplitude * cycle.amplitudeJump || amplitude * cycle.amplitudeJump < lastAmplitude);
+		lastAmplitude = amplitude;
+		if (changed || jump) {
+			eventful = true;
+		}
+		
+		if (pending || nowNanos - burstStartNanos < cycle.onMs * 1000000L) {
+			return false;
+		}
+		
+		offMs = eventful ? cycle.minOffMs : Math.min(offMs * 2, cycle.maxOffMs);
+		eventful = false;
+		onNanos += nowNanos - burstStartNanos;
+		listening = false;
+		return true;
+	}
+	
+	/**
+	 * Sleep time before the next burst
+	 */
+	synchronized int getOffMs() {
+		return offMs;
+	}
+	
+	/**
+	 * Start the next burst
+	 */
+	synchronized void onWake(long nowNanos) {
+		burstStartNanos = nowNanos;
+		listening = true;
+	}
+	
+	/**
+	 * Fraction of the time since start spent listening
+	 */
+	synchronized float getDutyCycle(long nowNanos) {
+		long total = nowNanos - startNanos;
+		long on = onNanos + (listening ? nowNanos - burstStartNanos : 0);
+		return total > 0 ? (float)on / total : 1.f;
+	}
+}
@@ -0,0 +1,250 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FeatureTraceReader loads a trace written by WaterDetector.startFeatureTrace and replays it through the classifier,
+ * for example with the weights of another device profile to see whether they would have avoided a false submersion.
+ * Like BatchAnalyzer it does not depend on the Android framework and runs on a desktop JVM with the host build
+ * of the native library. Records are numbered from the oldest one still in the file.
+ */
+public class FeatureTraceReader {
+	private final String name;
+	private final ByteBuffer trace;
+	private final String profileName;
+	private final int capacity;
+	private final long count;
+	private final int size;
+	
+	/**
+	 * Load a trace. The records written up to this call are copied, later ones are ignored. While the file is
+	 * still recorded to, the oldest records may be overwritten during the copy and are left out.
+	 * @param file The trace file, which may still be recorded to
+	 * @throws IOException If the file can't be read or is not a trace of this version
+	 */
+	public FeatureTraceReader(File file) throws IOException {
+		name = file.getName();
+		ByteBuffer mapped;
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			if (channel.size() < FeatureTraceRecorder.HEADER_SIZE) {
+				throw new IOException(name + " is not a feature trace");
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		finally {
+			stream.close();
+		}
+		
+		//The records are copied between reading the completed and the started count, any slot rewritten
+		//in the meantime belongs to a record numbered from written - capacity to started - capacity - 1
+		long written = mapped.getLong(FeatureTraceRecorder.HEADER_COUNT);
+		trace = ByteBuffer.allocate(mapped.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+		trace.put(mapped);
+		long started = mapped.getLong(FeatureTraceRecorder.HEADER_STARTED);
+		
+		if (trace.getInt(FeatureTraceRecorder.HEADER_MAGIC) != FeatureTraceRecorder.MAGIC) {
+			throw new IOException(name + " is not a feature trace");
+		}
+		if (trace.getInt(FeatureTraceRecorder.HEADER_VERSION) != FeatureTraceRecorder.VERSION
+				|| trace.getInt(FeatureTraceRecorder.HEADER_RECORD_SIZE) != FeatureTraceRecorder.RECORD_SIZE) {
+			throw new IOException("Unsupported feature trace version " + trace.getInt(FeatureTraceRecorder.HEADER_VERSION));
+		}
+		capacity = trace.getInt(FeatureTraceRecorder.HEADER_CAPACITY);
+		count = written;
+		if (capacity <= 0 || count < 0 || started < count
+				|| trace.capacity() < FeatureTraceRecorder.HEADER_SIZE + (long)capacity * FeatureTraceRecorder.RECORD_SIZE) {
+			throw new IOException(name + " is truncated");
+		}
+		size = (int)Math.max(0, count - Math.max(0, started - capacity));
+		
+		StringBuilder profile = new StringBuilder();
+		for (int i = 0; i < FeatureTraceRecorder.PROFILE_NAME_LENGTH; i++) {
+			byte c = trace.get(FeatureTraceRecorder.HEADER_PROFILE + i);
+			if (c == 0) {
+				break;
+			}
+			profile.append((char)c);
+		}
+		profileName = profile.toString();
+	}
+	
+	/**
+	 * @return Name of the device profile the trace was recorded with
+	 */
+	public String getProfileName() {
+		return profileName;
+	}
+	
+	/**
+	 * @return Number of records in the trace
+	 */
+	public int getRecordCount() {
+		return size;
+	}
+	
+	/**
+	 * @return Number of records overwritten because the trace was full, or left out because they were
+	 * overwritten while the trace was loaded
+	 */
+	public long getOverwrittenCount() {
+		return count - size;
+	}
+	
+	/**
+	 * Get the recorded decision of a window
+	 * @param index Record number, 0 is the oldest
+	 * @return A copy of the decision, with the time it was made
+	 */
+	public Decision getDecision(int index) {
+		int position = position(index);
+		Decision decision = new Decision();
+		readValues(position, decision);
+		decision.underWater = (flags(position) & FeatureTraceRecorder.FLAG_UNDERWATER) != 0;
+		decision.timeNanos = trace.getLong(position + FeatureTraceRecorder.RECORD_TIME_NANOS);
+		return decision;
+	}
+	
+	/**
+	 * @param index Record number, 0 is the oldest
+	 * @return System.currentTimeMillis when the decision was made, to match the trace with a reported event
+	 */
+	public long getWallTimeMs(int index) {
+		return trace.getLong(position(index) + FeatureTraceRecorder.RECORD_WALL_TIME_MS);
+	}
+	
+	/**
+	 * @param index Record number, 0 is the oldest
+	 * @return The state reported to the WaterEventListener after the decision, 1 underwater, 0 in air
+	 * or -1 if no state was reported yet
+	 */
+	public int getReportedState(int index) {
+		int flags = flags(position(index));
+		if ((flags & FeatureTraceRecorder.FLAG_REPORTED_UNDERWATER) != 0) {
+			return 1;
+		}
+		return (flags & FeatureTraceRecorder.FLAG_REPORTED_IN_AIR) != 0 ? 0 : -1;
+	}
+	
+	/**
+	 * @param index Record number, 0 is the oldest
+	 * @return True if the record is the first decision after onResume
+	 */
+	public boolean isResumed(int index) {
+		return (flags(position(index)) & FeatureTraceRecorder.FLAG_RESUMED) != 0;
+	}
+	
+	/**
+	 * Classify the recorded features again with the classifier weights and baseline tracking of a device profile.
+	 * Windows recorded while calibrating stay calibrating. The replay starts from the baseline the first classified
+	 * window was normalised by, and again after every recorded calibration, then tracks it like the profile would.
+	 * If the oldest record was already classified its own baseline is used, which the detector may have moved
+	 * towards its features.
+	 * @param profile The profile whose weights are tried, for example the one named by getProfileName with
+	 * modified weights
+	 * @return A decision for every record, named after the profile, with times from the oldest record
+	 */
+	public BatchAnalyzer.Result replay(DeviceProfile profile) {
+		DetectionEngine engine = new DetectionEngine(new DetectorConfig.Builder(profile).build());
+		List<BatchAnalyzer.Window> windows = new ArrayList<BatchAnalyzer.Window>(size);
+		Decision decision = new Decision();
+		float[] baseline = new float[Decision.FEATURE_COUNT];
+		long startNanos = size > 0 ? trace.getLong(position(0) + FeatureTraceRecorder.RECORD_TIME_NANOS) : 0;
+		boolean calibrating = true;
+		
+		try {
+			for (int i = 0; i < size; i++) {
+				int position = position(i);
+				readValues(position, decision);
+				long timeMs = (trace.getLong(position + FeatureTraceRecorder.RECORD_TIME_NANOS) - startNanos) / 1000000L;
+				float[] features = new float[Decision.FEATURE_COUNT];
+				decision.getFeatures(features);
+				
+				if (Float.isNaN(decision.getMargin())) {
+					//The last calibrating window holds the finished baseline the next window is normalised by
+					copyBaseline(decision, baseline);
+					calibrating = true;
+					windows.add(new BatchAnalyzer.Window(timeMs, false, features, Float.NaN));
+					continue;
+				}
+				if (calibrating) {
+					//Without a calibrating window before the oldest record, start from its own baseline
+					if (i == 0) {
+						copyBaseline(decision, baseline);
+					}
+					calibrating = false;
+					engine.setBaseline(baseline);
+				}
+				
+				boolean underWater = engine.replay(decision.values);
+				windows.add(new BatchAnalyzer.Window(timeMs, underWater, features, decision.getMargin()));
+			}
+		}
+		finally {
+			engine.release();
+		}
+		return new BatchAnalyzer.Result(name + " " + profile.getName(), windows);
+	}
+	
+	private int position(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Record " + index + " of " + size);
+		}
+		//The oldest record follows the newest once the ring has wrapped
+		long slot = (count - size + index) % capacity;
+		return FeatureTraceRecorder.HEADER_SIZE + (int)slot * FeatureTraceRecorder.RECORD_SIZE;
+	}
+	
+	private static void copyBaseline(Decision decision, float[] baseline) {
+		for (int i = 0; i < Decision.FEATURE_COUNT; i++) {
+			baseline[i] = decision.getBaseline(i);
+		}
+	}
+	
+	private int flags(int position) {
+		return trace.getInt(position + FeatureTraceRecorder.RECORD_FLAGS);
+	}
+	
+	private void readValues(int position, Decision decision) {
+		for (int i = 0; i < Decision.SIZE; i++) {
+			decision.values.put(i, trace.getFloat(position + FeatureTraceRecorder.RECORD_VALUES + i * 4));
+		}
+	}
+}
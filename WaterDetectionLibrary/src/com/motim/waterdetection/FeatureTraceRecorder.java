@@ -0,0 +1,175 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FeatureTraceRecorder appends the decision of every detection window to a memory-mapped ring file, so the
+ * windows leading up to a wrong decision can be analysed later with FeatureTraceReader.
+ * Recording only copies a fixed-size record into the mapping, the system writes the pages back to the file.
+ * They survive the app crashing or being killed, only the records of the last seconds before a power loss may be lost.
+ * 
+ * The file starts with a header of HEADER_SIZE bytes, followed by capacity records of RECORD_SIZE bytes.
+ * Record i is stored in slot i % capacity, so the file keeps the last capacity records. All values are little endian.
+ * The header counts the records started and the records completed, so a reader of a file still being recorded to
+ * can tell which slots may have been overwritten while it read them.
+ */
+final class FeatureTraceRecorder {
+	static final int MAGIC = 0x57445452;
+	static final int VERSION = 2;
+	
+	//Layout of the header
+	static final int HEADER_MAGIC = 0;
+	static final int HEADER_VERSION = 4;
+	static final int HEADER_RECORD_SIZE = 8;
+	static final int HEADER_CAPACITY = 12;
+	//Number of records written, including those overwritten since
+	static final int HEADER_COUNT = 16;
+	//Number of records whose writing started, one more than HEADER_COUNT while a record is written
+	static final int HEADER_STARTED = 24;
+	//Name of the device profile in ASCII, zero padded
+	static final int HEADER_PROFILE = 32;
+	static final int PROFILE_NAME_LENGTH = 32;
+	static final int HEADER_SIZE = 64;
+	
+	//Layout of a record
+	static final int RECORD_TIME_NANOS = 0;
+	static final int RECORD_WALL_TIME_MS = 8;
+	static final int RECORD_FLAGS = 16;
+	//Decision.SIZE values, laid out like Decision
+	static final int RECORD_VALUES = 20;
+	static final int RECORD_SIZE = RECORD_VALUES + Decision.SIZE * 4;
+	
+	//Bits of the record flags
+	static final int FLAG_UNDERWATER = 1;
+	static final int FLAG_REPORTED_UNDERWATER = 2;
+	static final int FLAG_REPORTED_IN_AIR = 4;
+	static final int FLAG_RESUMED = 8;
+	
+	private final MappedByteBuffer trace;
+	private final int capacity;
+	private long count = 0;
+	private boolean closed = false;
+	
+	/**
+	 * Create or overwrite a trace file
+	 * @param file The file, which is resized to hold the header and capacity records
+	 * @param capacity Number of records kept, the oldest are overwritten first
+	 * @param profile Name of the device profile of the detector, kept in the header
+	 * @throws IOException If the file can't be created or mapped
+	 */
+	FeatureTraceRecorder(File file, int capacity, String profile) throws IOException {
+		if (capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) {
+			throw new IllegalArgumentException("Unsupported trace capacity " + capacity);
+		}
+		this.capacity = capacity;
+		
+		int size = HEADER_SIZE + capacity * RECORD_SIZE;
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(size);
+			//The mapping stays valid after the file is closed, it is released with the buffer
+			trace = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		finally {
+			out.close();
+		}
+		trace.order(ByteOrder.LITTLE_ENDIAN);
+		
+		trace.putInt(HEADER_MAGIC, MAGIC);
+		trace.putInt(HEADER_VERSION, VERSION);
+		trace.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+		trace.putInt(HEADER_CAPACITY, capacity);
+		trace.putLong(HEADER_COUNT, 0);
+		trace.putLong(HEADER_STARTED, 0);
+		for (int i = 0; i < PROFILE_NAME_LENGTH; i++) {
+			char c = i < profile.length() ? profile.charAt(i) : 0;
+			trace.put(HEADER_PROFILE + i, (byte)(c < 128 ? c : '?'));
+		}
+	}
+	
+	/**
+	 * Append the decision of a window, overwriting the oldest record once the file is full. Does nothing once closed.
+	 * @param decision The decision as written by the engine
+	 * @param underWater The raw classifier decision
+	 * @param reportedState The state reported after the hysteresis, 1 underwater, 0 in air or -1 not yet known
+	 * @param resumed True for the first decision after onResume
+	 * @param timeNanos System.nanoTime of the decision
+	 */
+	synchronized void record(Decision decision, boolean underWater, int reportedState, boolean resumed, long timeNanos) {
+		if (closed) {
+			return;
+		}
+		
+		int flags = 0;
+		if (underWater) {
+			flags |= FLAG_UNDERWATER;
+		}
+		if (reportedState == 1) {
+			flags |= FLAG_REPORTED_UNDERWATER;
+		}
+		else if (reportedState == 0) {
+			flags |= FLAG_REPORTED_IN_AIR;
+		}
+		if (resumed) {
+			flags |= FLAG_RESUMED;
+		}
+		
+		//Announced before the slot is overwritten, so a reader drops the record that was there
+		trace.putLong(HEADER_STARTED, count + 1);
+		int position = HEADER_SIZE + (int)(count % capacity) * RECORD_SIZE;
+		trace.putLong(position + RECORD_TIME_NANOS, timeNanos);
+		trace.putLong(position + RECORD_WALL_TIME_MS, System.currentTimeMillis());
+		trace.putInt(position + RECORD_FLAGS, flags);
+		for (int i = 0; i < Decision.SIZE; i++) {
+			trace.putFloat(position + RECORD_VALUES + i * 4, decision.values.get(i));
+		}
+		
+		//Counted once the record is complete, so a reader never takes a half written record as valid
+		count++;
+		trace.putLong(HEADER_COUNT, count);
+	}
+	
+	/**
+	 * Write the records back to the file and stop recording. Safe to call more than once.
+	 */
+	synchronized void close() {
+		if (!closed) {
+			closed = true;
+			trace.force();
+		}
+	}
+}
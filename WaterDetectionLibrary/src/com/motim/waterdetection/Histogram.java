@@ -0,0 +1,151 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram counts values in fixed buckets without locking, so it can be updated on the detection thread
+ * while other threads take snapshots. Values are recorded as longs in units of 1/scale.
+ */
+final class Histogram {
+	//Inclusive upper bounds of all buckets but the last, which is unbounded
+	private final long[] bounds;
+	private final double scale;
+	
+	private final AtomicLongArray counts;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+	
+	private Histogram(long[] bounds, double scale) {
+		this.bounds = bounds;
+		this.scale = scale;
+		counts = new AtomicLongArray(bounds.length + 1);
+	}
+	
+	/**
+	 * Buckets doubling in size, for durations
+	 * @param first Upper bound of the first bucket
+	 * @param buckets Number of bounded buckets
+	 */
+	static Histogram exponential(long first, int buckets) {
+		long[] bounds = new long[buckets];
+		for (int i = 0; i < buckets; i++) {
+			bounds[i] = first << i;
+		}
+		return new Histogram(bounds, 1);
+	}
+	
+	/**
+	 * Buckets of equal size
+	 * @param first Upper bound of the first bucket
+	 * @param step Size of the buckets
+	 * @param buckets Number of bounded buckets
+	 * @param scale Recorded values per unit
+	 */
+	static Histogram linear(long first, long step, int buckets, double scale) {
+		long[] bounds = new long[buckets];
+		for (int i = 0; i < buckets; i++) {
+			bounds[i] = first + step * i;
+		}
+		return new Histogram(bounds, scale);
+	}
+	
+	void record(long value) {
+		int bucket = 0;
+		while (bucket < bounds.length && value > bounds[bucket]) {
+			bucket++;
+		}
+		counts.incrementAndGet(bucket);
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		
+		long current;
+		while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+		}
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+		}
+	}
+	
+	void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		min.set(Long.MAX_VALUE);
+		max.set(Long.MIN_VALUE);
+	}
+	
+	/**
+	 * Copy the current state. Values recorded during the copy may be partly included.
+	 */
+	DetectorMetrics.Distribution snapshot() {
+		long[] bucketCounts = new long[counts.length()];
+		long total = 0;
+		for (int i = 0; i < bucketCounts.length; i++) {
+			bucketCounts[i] = counts.get(i);
+			total += bucketCounts[i];
+		}
+		
+		double[] upperBounds = new double[bounds.length];
+		for (int i = 0; i < bounds.length; i++) {
+			upperBounds[i] = bounds[i] / scale;
+		}
+		
+		if (total == 0) {
+			return new DetectorMetrics.Distribution(0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, upperBounds, bucketCounts);
+		}
+		
+		double low = min.get() / scale;
+		double high = max.get() / scale;
+		return new DetectorMetrics.Distribution(total, sum.get() / scale / count.get(), low, high,
+				percentile(bucketCounts, total, 0.5, high), percentile(bucketCounts, total, 0.9, high),
+				percentile(bucketCounts, total, 0.99, high), upperBounds, bucketCounts);
+	}
+	
+	/**
+	 * Upper bound of the bucket holding the given fraction of the values, at most the largest value
+	 */
+	private double percentile(long[] bucketCounts, long total, double fraction, double high) {
+		long rank = (long)Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < bounds.length; i++) {
+			seen += bucketCounts[i];
+			if (seen >= rank) {
+				return Math.min(bounds[i] / scale, high);
+			}
+		}
+		return high;
+	}
+}
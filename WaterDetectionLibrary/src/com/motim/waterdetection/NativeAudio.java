@@ -0,0 +1,158 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package com.motim.waterdetection;
+
+/**
+ * NativeAudio plays the test tone and records both microphones with OpenSL ES, running the detection engine
+ * in the recorder callback. Java is only called when the reported state changes, on the audio thread.
+ * The engine must not be used by Java code while the audio runs.
+ */
+final class NativeAudio {
+	/**
+	 * StateListener receives the changes of the reported state
+	 */
+	interface StateListener {
+		/**
+		 * Called on the audio thread, so it must return quickly
+		 * @param underWater True if the device is probably underwater, False otherwise
+		 */
+		void onStateChange(boolean underWater);
+	}
+	
+	private final StateListener listener;
+	private long handle;
+	
+	private NativeAudio(StateListener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * @return True if the native library of this build includes the OpenSL ES audio
+	 */
+	static boolean isAvailable() {
+		try {
+			return isSupported();
+		} catch (LinkageError e) {
+			//The library is missing or was built without it
+			return false;
+		}
+	}
+	
+	/**
+	 * Create the player and the stereo recorder for an engine
+	 * @param engine Engine run by the recorder callback, which must outlive the audio
+	 * @param sampleRateInHz Sample rate of the engine configuration
+	 * @param tone Test tone, little endian 16 bit mono samples, played in a loop
+	 * @param listener Receives the changes of the reported state
+	 * @return The audio, or null if the device can't provide the player or recorder
+	 */
+	static NativeAudio open(DetectionEngine engine, int sampleRateInHz, byte[] tone, StateListener listener) {
+		NativeAudio audio = new NativeAudio(listener);
+		audio.handle = create(audio, engine.getHandle(), sampleRateInHz, tone);
+		return audio.handle != 0 ? audio : null;
+	}
+	
+	/**
+	 * Start playing and recording. The first state after starting is always reported, later states
+	 * after the given number of consecutive decisions.
+	 * @return True if the audio started
+	 */
+	boolean start(int uwRequired, int airRequired) {
+		return start(handle, uwRequired, airRequired);
+	}
+	
+	/**
+	 * Stop playing and recording, no state is reported once this returns
+	 */
+	void stop() {
+		stop(handle);
+	}
+	
+	/**
+	 * Select the feature engine of the engine, applied by the audio thread between frames
+	 * @param featureEngine One of the WaterDetector.FEATURE_ENGINE_ constants
+	 */
+	void setFeatureEngine(int featureEngine) {
+		setFeatureEngine(handle, featureEngine);
+	}
+	
+	/**
+	 * Stop and free the player and recorder. Safe to call more than once.
+	 */
+	synchronized void release() {
+		if (handle != 0) {
+			destroy(handle);
+			handle = 0;
+		}
+	}
+	
+	/**
+	 * Called by native code on the audio thread
+	 */
+	@SuppressWarnings("unused")
+	private void onStateChange(boolean underWater) {
+		listener.onStateChange(underWater);
+	}
+	
+	/**
+	 * Native method telling whether the library was built with the OpenSL ES audio
+	 */
+	private static native boolean isSupported();
+	
+	/**
+	 * Native method creating the player and recorder
+	 * @return Handle of the audio, 0 on failure
+	 */
+	private static native long create(NativeAudio target, long engine, int sampleRateInHz, byte[] tone);
+	
+	/**
+	 * Native method starting the audio
+	 */
+	private static native boolean start(long handle, int uwRequired, int airRequired);
+	
+	/**
+	 * Native method stopping the audio
+	 */
+	private static native void stop(long handle);
+	
+	/**
+	 * Native method handing a feature engine to the audio thread
+	 */
+	private static native void setFeatureEngine(long handle, int featureEngine);
+	
+	/**
+	 * Native method freeing the audio
+	 */
+	private static native void destroy(long handle);
+	
+	/** Load jni .so on initialization */
+	static {
+		System.loadLibrary("WaterDetection");
+	}
+}
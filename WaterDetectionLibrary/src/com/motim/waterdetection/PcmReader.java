@@ -0,0 +1,228 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * PcmReader reads interleaved 16 bit stereo audio from a WAV file or a raw little endian PCM stream.
+ * Raw streams are assumed to be recorded at 44.1 kHz, like the live detector.
+ */
+public class PcmReader {
+	private static final int RAW_SAMPLE_RATE = 44100;
+	
+	private final DataInputStream in;
+	private final boolean swap = ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN;
+	private byte[] scratch = new byte[0];
+	private int sampleRate = RAW_SAMPLE_RATE;
+	private long dataOffset = 0;
+	private long dataLength = -1;
+	private long remaining = Long.MAX_VALUE;
+	
+	/**
+	 * Open a stream, parsing the WAV header if there is one
+	 * @param stream The stream to read audio from, positioned at its start
+	 * @throws IOException If the stream is a WAV file that is not 16 bit stereo PCM
+	 */
+	public PcmReader(InputStream stream) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(stream));
+		in.mark(12);
+		byte[] riff = new byte[12];
+		int read = 0;
+		while (read < riff.length) {
+			int count = in.read(riff, read, riff.length - read);
+			if (count < 0) {
+				break;
+			}
+			read += count;
+		}
+		
+		if (read == riff.length && tag(riff, 0).equals("RIFF") && tag(riff, 8).equals("WAVE")) {
+			dataOffset = riff.length;
+			readWavHeader();
+		}
+		else {
+			in.reset();
+		}
+	}
+	
+	/**
+	 * Walk the RIFF chunks up to the start of the sample data
+	 */
+	private void readWavHeader() throws IOException {
+		byte[] id = new byte[4];
+		boolean formatFound = false;
+		
+		for (;;) {
+			in.readFully(id);
+			long size = readIntLE() & 0xffffffffL;
+			dataOffset += 8;
+			
+			if (tag(id, 0).equals("fmt ")) {
+				int format = readShortLE();
+				int channels = readShortLE();
+				sampleRate = readIntLE();
+				readIntLE(); //byte rate
+				readShortLE(); //block align
+				int bits = readShortLE();
+				skipFully(size - 16);
+				
+				if (format != 1 || channels != 2 || bits != 16) {
+					throw new IOException("Unsupported WAV format " + format + ", " + channels + " channels, " + bits + " bits");
+				}
+				formatFound = true;
+			}
+			else if (tag(id, 0).equals("data")) {
+				if (!formatFound) {
+					throw new IOException("WAV data before format chunk");
+				}
+				dataLength = size;
+				remaining = size;
+				return;
+			}
+			else {
+				skipFully(size);
+			}
+			
+			//chunks are padded to even sizes
+			dataOffset += size + (size & 1);
+			if ((size & 1) != 0) {
+				skipFully(1);
+			}
+		}
+	}
+	
+	/**
+	 * Sample rate of the audio, 44100 for raw streams
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+	
+	/**
+	 * Offset of the first sample from the start of the stream
+	 */
+	public long getDataOffset() {
+		return dataOffset;
+	}
+	
+	/**
+	 * Length of the sample data in bytes, or -1 for raw streams where it is unknown
+	 */
+	public long getDataLength() {
+		return dataLength;
+	}
+	
+	/**
+	 * Fill a buffer with samples in native byte order, starting at position 0.
+	 * Only the last read of the stream returns less than the buffer capacity.
+	 * @param dst The buffer to fill
+	 * @return Number of bytes read, or -1 at the end of the audio
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		return read(dst, dst.capacity());
+	}
+	
+	/**
+	 * Read up to a number of bytes into a buffer, in native byte order starting at position 0
+	 * @param dst The buffer to fill
+	 * @param sizeInBytes Maximum number of bytes to read
+	 * @return Number of bytes read, or -1 at the end of the audio
+	 */
+	public int read(ByteBuffer dst, int sizeInBytes) throws IOException {
+		int length = (int)Math.min(Math.min(sizeInBytes, dst.capacity()) & ~1, remaining);
+		if (scratch.length < length) {
+			scratch = new byte[length];
+		}
+		
+		int read = 0;
+		while (read < length) {
+			int count = in.read(scratch, read, length - read);
+			if (count < 0) {
+				break;
+			}
+			read += count;
+		}
+		read &= ~1;
+		if (read == 0) {
+			return -1;
+		}
+		remaining -= read;
+		
+		for (int i = 0; i < read; i += 2) {
+			if (swap) {
+				dst.put(i, scratch[i+1]);
+				dst.put(i+1, scratch[i]);
+			}
+			else {
+				dst.put(i, scratch[i]);
+				dst.put(i+1, scratch[i+1]);
+			}
+		}
+		return read;
+	}
+	
+	/**
+	 * Close the underlying stream
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+	
+	private int readShortLE() throws IOException {
+		int b0 = in.readUnsignedByte();
+		int b1 = in.readUnsignedByte();
+		return b0 | (b1 << 8);
+	}
+	
+	private int readIntLE() throws IOException {
+		return readShortLE() | (readShortLE() << 16);
+	}
+	
+	private void skipFully(long count) throws IOException {
+		while (count > 0) {
+			long skipped = in.skip(count);
+			if (skipped <= 0) {
+				throw new EOFException("Truncated WAV header");
+			}
+			count -= skipped;
+		}
+	}
+	
+	private static String tag(byte[] bytes, int offset) {
+		return new String(bytes, offset, 4);
+	}
+}
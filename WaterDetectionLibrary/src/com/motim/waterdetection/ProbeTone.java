@@ -0,0 +1,107 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+// list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+// this list of conditions and the following disclaimer in the documentation and/or
+// other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its contributors
+// may be used to endorse or promote products derived from this software without
+// specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ProbeTone synthesises the test tone played by the detector
+ */
+class ProbeTone {
+	//Tones generated so far, by sample rate, frequency and length. Every detector plays the same tone.
+	private static final Map<String, byte[]> cache = new HashMap<String, byte[]>();
+	
+	/**
+	 * Get the tone, generating it on the first request for these parameters only
+	 * @param numSamples Length of the tone in samples
+	 * @param sampleRateInHz Sample rate of the playback
+	 * @param freqOfTone Frequency of the tone
+	 * @return The tone as little endian 16 bit mono samples, shared by all callers and not to be modified
+	 */
+	static synchronized byte[] get(int numSamples, int sampleRateInHz, int freqOfTone) {
+		String key = sampleRateInHz + "/" + freqOfTone + "/" + numSamples;
+		byte[] tone = cache.get(key);
+		if (tone == null) {
+			tone = generate(numSamples, sampleRateInHz, freqOfTone);
+			cache.put(key, tone);
+		}
+		return tone;
+	}
+	
+	/**
+	 * Generate the tone, ramped up and down in amplitude to avoid clicks when it is looped
+	 * @param numSamples Length of the tone in samples
+	 * @param sampleRateInHz Sample rate of the playback
+	 * @param freqOfTone Frequency of the tone
+	 * @return The tone as little endian 16 bit mono samples
+	 */
+	static byte[] generate(int numSamples, int sampleRateInHz, int freqOfTone) {
+		byte[] playbackTone = new byte[numSamples * 2];
+		double sample[] = new double[numSamples];
+		
+		for (int i = 0; i < numSamples; i++){
+			sample[i] = Math.sin(2 * Math.PI * i / (sampleRateInHz/freqOfTone));
+		}
+		
+		int idx = 0;
+		int i;
+		int ramp = numSamples / 10;
+		
+		// Ramp amplitude up (to avoid clicks)
+		for (i = 0; i< ramp; ++i) {
+			double dVal = sample[i];
+			final short val = (short) ((dVal * 32767 * i/ramp));
+
+			playbackTone[idx++] = (byte) (val & 0x00ff);
+			playbackTone[idx++] = (byte) ((val & 0xff00) >>> 8);
+		}
+
+		// Max amplitude for most of the samples
+		for (; i< numSamples - ramp; ++i) {
+			double dVal = sample[i];
+			final short val = (short) ((dVal * 32767));
+
+			playbackTone[idx++] = (byte) (val & 0x00ff);
+			playbackTone[idx++] = (byte) ((val & 0xff00) >>> 8);
+		}
+
+		// Ramp down to zero
+		for (; i< numSamples; ++i) {
+			double dVal = sample[i];
+			final short val = (short) ((dVal * 32767 * (numSamples-i)/ramp ));
+
+			playbackTone[idx++] = (byte) (val & 0x00ff);
+			playbackTone[idx++] = (byte) ((val & 0xff00) >>> 8);
+		}
+
+		return playbackTone;
+	}
+}
@@ -0,0 +1,101 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ReplayAudioSource plays back a recorded 16 bit stereo WAV or raw PCM stream.
+ * By default audio is delivered as fast as it is read, or paced like a live recording with setRealtime.
+ */
+public class ReplayAudioSource implements AudioSource {
+	private final PcmReader reader;
+	private final Pacer pacer;
+	private boolean realtime = false;
+	
+	/**
+	 * @param stream The recording, closed when the source is released
+	 * @throws IOException If the stream is a WAV file that is not 16 bit stereo PCM
+	 */
+	public ReplayAudioSource(InputStream stream) throws IOException {
+		reader = new PcmReader(stream);
+		pacer = new Pacer(reader.getSampleRate());
+	}
+	
+	/**
+	 * Deliver audio at the recording's sample rate instead of as fast as possible
+	 * @param realtime True to pace the playback, False otherwise
+	 */
+	public void setRealtime(boolean realtime) {
+		this.realtime = realtime;
+	}
+	
+	@Override
+	public boolean start() {
+		pacer.reset();
+		return true;
+	}
+	
+	@Override
+	public int read(ByteBuffer buffer, int sizeInBytes) {
+		try {
+			int bytesRead = reader.read(buffer, sizeInBytes);
+			if (bytesRead < 0) {
+				return END_OF_STREAM;
+			}
+			if (realtime) {
+				pacer.advance(bytesRead / 4);
+			}
+			return bytesRead;
+		} catch (IOException e) {
+			return ERROR;
+		}
+	}
+	
+	@Override
+	public void stop() {
+	}
+	
+	@Override
+	public void release() {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public int getSampleRate() {
+		return reader.getSampleRate();
+	}
+}
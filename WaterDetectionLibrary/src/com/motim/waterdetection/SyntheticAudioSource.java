@@ -0,0 +1,141 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * SyntheticAudioSource generates a deterministic test signal for both microphones:
+ * a sine tone plus gaussian noise, with separate levels per microphone that can be changed while running
+ * to simulate a change of environment.
+ */
+public class SyntheticAudioSource implements AudioSource {
+	private final int sampleRate;
+	private final long lengthInFrames;
+	private final long seed;
+	private final Pacer pacer;
+	private Random random;
+	private long position;
+	private boolean realtime = false;
+	
+	private volatile float toneFrequency;
+	private volatile float toneAmplitude1, toneAmplitude2;
+	private volatile float noiseAmplitude1, noiseAmplitude2;
+	
+	/**
+	 * @param sampleRate Sample rate of the generated audio
+	 * @param durationMs Length of the generated audio, or a negative value for an endless signal
+	 * @param seed Seed of the noise, equal seeds give equal signals
+	 */
+	public SyntheticAudioSource(int sampleRate, long durationMs, long seed) {
+		this.sampleRate = sampleRate;
+		this.lengthInFrames = durationMs < 0 ? Long.MAX_VALUE : durationMs * sampleRate / 1000;
+		this.seed = seed;
+		this.pacer = new Pacer(sampleRate);
+		this.toneFrequency = sampleRate / 2;
+		setLevels(1000, 1000, 100, 100);
+	}
+	
+	/**
+	 * Set the frequency of the generated tone, by default the Nyquist frequency like the detector's test tone
+	 * @param frequency Tone frequency in Hz
+	 */
+	public void setToneFrequency(float frequency) {
+		toneFrequency = frequency;
+	}
+	
+	/**
+	 * Set the signal levels of both microphones, as peak sample values
+	 * @param tone1 Tone amplitude of the first microphone
+	 * @param tone2 Tone amplitude of the second microphone
+	 * @param noise1 Noise standard deviation of the first microphone
+	 * @param noise2 Noise standard deviation of the second microphone
+	 */
+	public void setLevels(float tone1, float tone2, float noise1, float noise2) {
+		toneAmplitude1 = tone1;
+		toneAmplitude2 = tone2;
+		noiseAmplitude1 = noise1;
+		noiseAmplitude2 = noise2;
+	}
+	
+	/**
+	 * Deliver audio at the sample rate instead of as fast as possible
+	 * @param realtime True to pace the generator, False otherwise
+	 */
+	public void setRealtime(boolean realtime) {
+		this.realtime = realtime;
+	}
+	
+	@Override
+	public boolean start() {
+		random = new Random(seed);
+		position = 0;
+		pacer.reset();
+		return true;
+	}
+	
+	@Override
+	public int read(ByteBuffer buffer, int sizeInBytes) {
+		if (position >= lengthInFrames) {
+			return END_OF_STREAM;
+		}
+		int frames = (int)Math.min(sizeInBytes / 4, lengthInFrames - position);
+		double phaseStep = 2 * Math.PI * toneFrequency / sampleRate;
+		
+		for (int i = 0; i < frames; i++, position++) {
+			double tone = Math.sin(phaseStep * position);
+			buffer.putShort(i * 4, clip(toneAmplitude1 * tone + noiseAmplitude1 * random.nextGaussian()));
+			buffer.putShort(i * 4 + 2, clip(toneAmplitude2 * tone + noiseAmplitude2 * random.nextGaussian()));
+		}
+		
+		if (realtime) {
+			pacer.advance(frames);
+		}
+		return frames * 4;
+	}
+	
+	private static short clip(double value) {
+		return (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+	}
+	
+	@Override
+	public void stop() {
+	}
+	
+	@Override
+	public void release() {
+	}
+	
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+}
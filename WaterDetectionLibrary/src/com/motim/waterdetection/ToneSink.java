@@ -0,0 +1,67 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+/**
+ * ToneSink plays the 16 bit mono test tone the detector listens for
+ */
+public interface ToneSink {
+	/**
+	 * Prepare and start playback. A duty-cycled detector starts the sink again after each stop.
+	 * @param tone The tone as little endian 16 bit samples, played repeatedly
+	 * @return True if the sink is ready to play, False otherwise
+	 */
+	boolean start(byte[] tone);
+	
+	/**
+	 * @return True if the sink repeats the tone by itself after start, so the detector never calls write
+	 */
+	boolean isLooping();
+	
+	/**
+	 * Queue part of the tone, blocking until it has been queued. Called on the detector's audio worker between
+	 * microphone reads, unless the sink is looping: first with the whole tone after start, then with chunks of
+	 * one frame continuing where the last one ended, so it must not block for much longer than the chunk plays.
+	 * @param tone The tone passed to start
+	 * @param offset First byte to play
+	 * @param length Number of bytes to play, a whole number of samples
+	 */
+	void write(byte[] tone, int offset, int length);
+	
+	/**
+	 * Stop playback, called when the detector is paused and between the bursts of a duty-cycled detector
+	 */
+	void stop();
+	
+	/**
+	 * Free the resources of the sink, called after stop when the detector is paused
+	 */
+	void release();
+}
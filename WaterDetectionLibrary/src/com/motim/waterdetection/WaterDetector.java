@@ -29,12 +29,25 @@
 
 package com.motim.waterdetection;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioManager;
-import android.media.AudioRecord;
 import android.media.AudioTrack;
-import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
 /**
@@ -42,291 +55,1069 @@ import android.util.Log;
  * on the input of the device microphones
  */
 public class WaterDetector {
-	AudioRecord audioRecord;
-	AudioTrack audioTrack;
-	short[] buffer = new short[1024];
+	/** Feature engine computing the spectrum with a full FFT */
+	public static final int FEATURE_ENGINE_FFT = 0;
+	/** Feature engine computing only the spectrum bins used by the classifier, with the Goertzel algorithm */
+	public static final int FEATURE_ENGINE_GOERTZEL = 1;
+	/**
+	 * Feature engine computing the spectrum bins used by the classifier and their statistics with integer arithmetic,
+	 * for devices without a floating point unit. Decides like the float engines, see jni/benchmark/FeatureBenchmark.
+	 */
+	public static final int FEATURE_ENGINE_FIXED_POINT = 2;
+	
+	/** Default number of spectrum frames in a detection window, about 0.93 s of audio */
+	public static final int DEFAULT_WINDOW_FRAMES = 80;
+	/** Default time the device must be classified as underwater before a submersion is reported */
+	public static final int DEFAULT_SUBMERGE_HYSTERESIS_MS = 2700;
+	/** Default time the device must be classified as in air before a surfacing is reported */
+	public static final int DEFAULT_SURFACE_HYSTERESIS_MS = 1800;
+	/** Default weight of a confidently in air window in the baseline, which then follows changes over about 20 windows */
+	public static final float DEFAULT_BASELINE_ADAPTATION_RATE = 0.05f;
+	/** Default margin by which the in air score must exceed the underwater score for the baseline to be updated */
+	public static final float DEFAULT_BASELINE_MIN_MARGIN = 2.f;
+	/** Time the idle worker is kept in warm standby, longer pauses start a new thread on resume */
+	public static final int STANDBY_KEEP_ALIVE_MS = 60000;
+	/** Time the detection thread waits after a failed read before reading again */
+	public static final int READ_ERROR_BACKOFF_MS = 20;
+	/** Number of consecutive failed reads after which the audio is given up and the session ends */
+	public static final int MAX_CONSECUTIVE_READ_ERRORS = 50;
+	
+	//Interleaved 16 bit stereo samples of one spectrum frame, read directly by native code
+	final ByteBuffer buffer;
+	
+	//Running average amplitudes of both microphones, updated by native code
+	private final FloatBuffer amplitudes = ByteBuffer.allocateDirect(2 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
 	
-	private int bufferSize;
-	private boolean active = false;
+	//True between onResume and onPause
+	private volatile boolean active = false;
 	private int playbackBufferSize;
 	private byte[] playbackTone;
-	private Thread toneThread;
 	
-	private Thread detectionThread;
+	//The single audio worker at audio priority. It runs one session at a time and everything else touching the audio
+	//objects, the engine or the state below, so onResume and onPause never wait for it. The thread ends when idle,
+	//or after STANDBY_KEEP_ALIVE_MS in warm standby.
+	private final ThreadPoolExecutor worker = new ThreadPoolExecutor(0, 1, 0, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					return new Thread(new Runnable() {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+							runnable.run();
+						}
+					}, "WaterDetector worker");
+				}
+			});
+	//Session started by the last onResume, null once paused
+	private Session session;
+	
+	//Warm standby keeps the audio objects created by onResume(Context) stopped between onPause and onResume
+	private volatile boolean warmStandby = false;
+	private AudioSource standbySource;
+	private ToneSink standbySink;
+	//Start of the last onResume, until the first decision after it is classified
+	private long resumeNanos;
+	private boolean awaitingFirstDecision = false;
+	
+	//OpenSL ES audio running the engine in native callbacks, used by onResume(Context) when enabled
+	private boolean nativeAudioEnabled = false;
+	private NativeAudio nativeAudio;
+	private boolean nativeAudioActive = false;
+	
+	//Duty-cycled mode, null for continuous detection
+	private DutyCycle dutyCycle;
+	private volatile DutyCycleScheduler scheduler;
+	//Notified when a session is paused, so a duty-cycled detector sleeping between bursts wakes up
+	private final Object burstLock = new Object();
+	//Last reported state, -1 until the first report after resuming
+	private int reportedState = -1;
 	
-	private final int sampleRateInHz = 44100;
-	private final int freqOfTone = sampleRateInHz/2;
+	private final int sampleRateInHz;
+	private final int freqOfTone;
 	
 	private int airconsecutive = 0;
 	private int uwconsecutive = 0;
+	private int airRequired;
+	private int uwRequired;
 	
 	private int ratioCounts = 0;
 	private double ratio = 0;
 	
-	private int frames = 80;
-	private float totMic1 = 0;
-	private float totMic2 = 0;
+	private final int frames;
+	private final int hopFrames;
+	
+	//Native detection pipeline owned by this detector
+	private final DetectionEngine engine;
+	private final DeviceProfile profile;
+	private final DetectorConfig config;
 	
 	/**
 	 * WaterEventListener is used to report changes in submersion state
 	 */
 	public interface WaterEventListener {
 		/**
-		 * Called when subersion state is changed
+		 * Called when subersion state is changed, and with the first state found after resuming
 		 * @param isSubmerged True if the phone is probably submerged in water, False otherwise
 		 */
 		void onWaterEvent(boolean isSubmerged);
 	}
 	
-	WaterEventListener listener;
-	private Runnable toneGenRunnable;
-	private Runnable detectionRunnable;
+	/**
+	 * WaterErrorListener is a WaterEventListener that is also told when detection stops because of the audio,
+	 * on the same thread as the state changes
+	 */
+	public interface WaterErrorListener extends WaterEventListener {
+		/**
+		 * Called when the microphones or speaker could not be started, or the microphones kept failing.
+		 * The detector reports no more states until it is paused and resumed.
+		 */
+		void onAudioError();
+	}
 	
-	public WaterDetector() {
-		bufferSize = AudioRecord.getMinBufferSize (sampleRateInHz, AudioFormat.CHANNEL_IN_STEREO,  AudioFormat.ENCODING_PCM_16BIT);
-		playbackBufferSize = AudioTrack.getMinBufferSize(sampleRateInHz, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
-
-		//Set up playback tone
-		
-		playbackTone = new byte[playbackBufferSize*10];
-		double sample[] = new double[playbackTone.length / 2];
-		int numSamples = sample.length;
+	/**
+	 * DecisionListener receives the details of every classifier decision, for example for logging
+	 * or for smoothing weighted by confidence
+	 */
+	public interface DecisionListener {
+		/**
+		 * Called on the detection thread after every decision, so it must return quickly
+		 * @param decision Features and scores of the decision, only valid during the call
+		 */
+		void onDecision(Decision decision);
+	}
+	
+	private volatile DecisionListener decisionListener;
+	//Written by the native engine on every decision
+	private final Decision decision = new Decision();
+	
+	//Updated by the detection thread, readable from any thread
+	private final DetectorMetrics metrics = new DetectorMetrics();
+	private long runStartNanos;
+	
+	//Baseline of the last decision, null while calibrating, and a restore or reset for the detection thread to apply
+	private final Object baselineLock = new Object();
+	private float[] baseline;
+	private float[] baselineRequest;
+	private volatile boolean baselineRequested = false;
+	
+	//Selected by setFeatureEngine, handed to the engine by the detection thread
+	private volatile int featureEngine = FEATURE_ENGINE_FFT;
+	private int appliedFeatureEngine = FEATURE_ENGINE_FFT;
+	
+	//Opt-in record of every decision for field diagnostics
+	private volatile FeatureTraceRecorder featureTrace;
+	
+	//Delivers state changes to the listener away from the detection thread
+	private final WaterEventDispatcher dispatcher = new WaterEventDispatcher(metrics);
+	
+	/**
+	 * One run of the detector from onResume to onPause, executed by the worker
+	 */
+	private final class Session implements Runnable {
+		final long startNanos;
+		//True if the audio objects are created by the detector and may be kept in warm standby
+		final boolean ownsAudio;
+		final boolean tryNativeAudio;
+		final DutyCycle cycle;
+		AudioSource source;
+		ToneSink sink;
+		//Next byte of the tone to write to a sink that does not loop it
+		int toneOffset = 0;
+		//Cleared by onPause, the worker then leaves the detection loop and stops the audio
+		volatile boolean running = true;
 		
-		for (int i = 0; i < numSamples; i++){
-			sample[i] = Math.sin(2 * Math.PI * i / (sampleRateInHz/freqOfTone));
+		Session(AudioSource source, ToneSink sink, boolean ownsAudio, boolean tryNativeAudio, long startNanos) {
+			this.source = source;
+			this.sink = sink;
+			this.ownsAudio = ownsAudio;
+			this.tryNativeAudio = tryNativeAudio;
+			this.startNanos = startNanos;
+			cycle = dutyCycle;
 		}
 		
-		int idx = 0;
-		int i;
-		int ramp = numSamples / 10;
+		@Override
+		public void run() {
+			runSession(this);
+		}
+	}
+	
+	/**
+	 * Create a detector with the window and tuning of the profile of this device,
+	 * deciding once per non-overlapping window of DEFAULT_WINDOW_FRAMES frames for the built in profiles
+	 */
+	public WaterDetector() {
+		this(new DetectorConfig.Builder(profileForThisDevice()).build());
+	}
+	
+	/**
+	 * Create a detector using a sliding window and the profile of this device.
+	 * With the built in profiles each frame holds 512 samples per microphone, about 11.6 ms of audio.
+	 * @param windowFrames Number of spectrum frames the features are computed over
+	 * @param hopFrames Number of frames between decisions, equal to windowFrames for non-overlapping windows
+	 */
+	public WaterDetector(int windowFrames, int hopFrames) {
+		this(new DetectorConfig.Builder(profileForThisDevice()).setWindowFrames(windowFrames, hopFrames).build());
+	}
+	
+	/**
+	 * Create a detector with the window and tuning of the given profile
+	 * @param profile Device profile, for example from DeviceProfileRegistry
+	 */
+	public WaterDetector(DeviceProfile profile) {
+		this(new DetectorConfig.Builder(profile).build());
+	}
+	
+	/**
+	 * Create a detector with the given profile using a sliding window
+	 * @param profile Device profile, for example from DeviceProfileRegistry
+	 * @param windowFrames Number of spectrum frames the features are computed over
+	 * @param hopFrames Number of frames between decisions, equal to windowFrames for non-overlapping windows
+	 */
+	public WaterDetector(DeviceProfile profile, int windowFrames, int hopFrames) {
+		this(new DetectorConfig.Builder(profile).setWindowFrames(windowFrames, hopFrames).build());
+	}
+	
+	/**
+	 * Create a detector with the given configuration, for example to record at the native sample rate of the device
+	 * @param config Configuration built for a device profile
+	 */
+	public WaterDetector(DetectorConfig config) {
+		this.config = config;
+		profile = config.getProfile();
+		frames = config.getWindowFrames();
+		hopFrames = config.getHopFrames();
+		sampleRateInHz = config.getSampleRate();
+		buffer = ByteBuffer.allocateDirect(config.getFftSize() * 2 * 2).order(ByteOrder.nativeOrder());
+		freqOfTone = sampleRateInHz/2;
+		setHysteresis(profile.getSubmergeHysteresisMs(), profile.getSurfaceHysteresisMs());
 		
-		// Ramp amplitude up (to avoid clicks)
-		for (i = 0; i< ramp; ++i) {                                    
-            double dVal = sample[i];
-            final short val = (short) ((dVal * 32767 * i/ramp));
-                                                                        
-            playbackTone[idx++] = (byte) (val & 0x00ff);
-            playbackTone[idx++] = (byte) ((val & 0xff00) >>> 8);
-        }
-
-		 // Max amplitude for most of the samples
-        for (; i< numSamples - ramp; ++i) {                       
-            double dVal = sample[i];
-            final short val = (short) ((dVal * 32767));
-
-            playbackTone[idx++] = (byte) (val & 0x00ff);
-            playbackTone[idx++] = (byte) ((val & 0xff00) >>> 8);
-        }
-
-        // Ramp down to zero
-        for (; i< numSamples; ++i) {  
-            double dVal = sample[i];                                                         		
-            final short val = (short) ((dVal * 32767 * (numSamples-i)/ramp ));
+		playbackBufferSize = AudioTrack.getMinBufferSize(sampleRateInHz, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
 
-            playbackTone[idx++] = (byte) (val & 0x00ff);
-            playbackTone[idx++] = (byte) ((val & 0xff00) >>> 8);
-        }
+		//Set up playback tone
+		
+		playbackTone = ProbeTone.get(playbackBufferSize*5, sampleRateInHz, freqOfTone);
 
-        //Create runnable for playing tone
-        toneGenRunnable = new Runnable() {
-			@Override
-			public void run() {
-				while (active) {
-					audioTrack.write(playbackTone, 0, playbackTone.length);
+        engine = new DetectionEngine(config);
+	}
+	
+	/**
+	 * Read and classify audio until the session is paused or the source ends, on the worker.
+	 * Tone sinks that do not loop get the tone in chunks of one frame between the reads.
+	 */
+	private void detect(Session session) {
+		boolean resumed = true;
+		int failedReads = 0;
+		while (session.running) {
+			if (session.sink != null && !session.sink.isLooping() && playbackTone.length > 0) {
+				writeTone(session);
+			}
+			
+			long readStart = System.nanoTime();
+			int bytesRead = session.source.read(buffer, buffer.capacity());
+			long readEnd = System.nanoTime();
+			if (bytesRead == AudioSource.END_OF_STREAM) {
+				break;
+			}
+			if (bytesRead == AudioSource.ERROR) {
+				metrics.readErrors.incrementAndGet();
+			}
+			else {
+				metrics.readLatency.record(readEnd - readStart);
+				if (bytesRead < buffer.capacity()) {
+					metrics.shortReads.incrementAndGet();
 				}
-				Log.d("WaterDetector", "Tone thread ending");
 			}
-        };
-        
-        //Create runnable for processing recorded audio samples
-        detectionRunnable = new Runnable()
-        {
-        	@Override
-        	public void run() {
-        		while (active) {
-        			int shortsRead = audioRecord.read(buffer, 0, buffer.length);
-        			float[] record1 = new float[buffer.length/2];
-        			float[] record2 = new float[buffer.length/2];
-
-        			int i,j;
-
-        			for (i = 0, j = 0; i < shortsRead; i+=2, j++)
-        			{
-        				record1[j] = 1000.f * (float)buffer[i];
-        				record2[j] = 1000.f * (float)buffer[i+1];
-
-        				totMic1 += Math.abs((float)buffer[i]);
-        				totMic2 += Math.abs((float)buffer[i+1]);
-        			}
-
-        			totMic1 /= (float)shortsRead;
-        			totMic2 /= (float)shortsRead;
-
-        			if(buildSpectrogram(record1, record2))
-        			{
-        				//Some hysteresis for submersion state.
-        				//Several consecutive measurements of the same reading
-        				//are required to shift state.
-        				
-        				if(isUnderWater(totMic1, totMic2)) {
-							uwconsecutive++;
-        					airconsecutive=0;
-        				}
-						else {
-							airconsecutive++;
-        					uwconsecutive=0;
-						}
-
-						if (uwconsecutive >= 3)
-						{
-							if (listener != null) {
-								listener.onWaterEvent(true);
-							}
-						}
-						else if (airconsecutive >= 2)
-						{
-							if (listener != null) {
-								listener.onWaterEvent(false);
-							}
-						}
-
-            			totMic1 = 0;
-            			totMic2 = 0;
-        			}
-        		}
-        	}
-        };
+			//A source stuck in an error state would otherwise spin at audio priority
+			if (bytesRead <= 0) {
+				if (++failedReads >= MAX_CONSECUTIVE_READ_ERRORS) {
+					Log.e("WaterDetector", "Audio source failed " + failedReads + " times in a row");
+					dispatcher.postError();
+					break;
+				}
+				backOff(session);
+				continue;
+			}
+			failedReads = 0;
+			
+			if (baselineRequested) {
+				applyBaselineRequest();
+			}
+			if (featureEngine != appliedFeatureEngine) {
+				applyFeatureEngine();
+			}
+			
+			//Deinterleaving, scaling, amplitude averaging and the FFT are done in one native pass
+			boolean decide = engine.processFrame(buffer, bytesRead / 2, amplitudes);
+			long processed = System.nanoTime();
+			metrics.frames.incrementAndGet();
+			metrics.processing.record(processed - readEnd);
+			//Falling behind the recorder, which will drop audio once its buffer is full
+			if (processed - readEnd > 1000000000L * (bytesRead / 4) / sampleRateInHz) {
+				metrics.overruns.incrementAndGet();
+			}
+			
+			if(decide)
+			{
+				float totMic1 = amplitudes.get(0);
+				float totMic2 = amplitudes.get(1);
+				
+				//Some hysteresis for submersion state.
+				//Several consecutive measurements of the same reading
+				//are required to shift state.
+				
+				boolean underWater = engine.classify(totMic1, totMic2, decision.values);
+				int previousState = reportedState;
+				metrics.decisions.incrementAndGet();
+				metrics.recordMargin(decision.getMargin());
+				if (!Float.isNaN(decision.getMargin())) {
+					publishBaseline();
+					if (awaitingFirstDecision) {
+						awaitingFirstDecision = false;
+						metrics.resumeLatency.record((processed - resumeNanos) / 1000000L);
+					}
+				}
+				
+				DecisionListener decisionTarget = decisionListener;
+				if (decisionTarget != null) {
+					decision.underWater = underWater;
+					decision.timeNanos = processed;
+					decisionTarget.onDecision(decision);
+				}
+				
+				if(underWater) {
+					uwconsecutive++;
+					airconsecutive=0;
+				}
+				else {
+					airconsecutive++;
+					uwconsecutive=0;
+				}
+				//Start of the run of equal decisions that may lead to a change
+				if (uwconsecutive == 1 || airconsecutive == 1) {
+					runStartNanos = processed;
+				}
+				
+				if (uwconsecutive >= uwRequired)
+				{
+					reportedState = 1;
+				}
+				else if (airconsecutive >= airRequired)
+				{
+					reportedState = 0;
+				}
+				
+				//Only changes are reported, queued without waiting for the listener
+				if (reportedState != previousState) {
+					dispatcher.post(reportedState == 1);
+					if (previousState != -1) {
+						metrics.transitions.incrementAndGet();
+						metrics.transitionLatency.record((System.nanoTime() - runStartNanos) / 1000000L);
+					}
+				}
+				
+				FeatureTraceRecorder trace = featureTrace;
+				if (trace != null) {
+					trace.record(decision, underWater, reportedState, resumed, processed);
+				}
+				resumed = false;
+				
+				amplitudes.put(0, 0.f);
+				amplitudes.put(1, 0.f);
+				
+				//Keep listening while a change is pending, otherwise sleep once the burst is long enough
+				if (scheduler != null) {
+					boolean pending = reportedState != (underWater ? 1 : 0);
+					if (scheduler.onDecision(pending, reportedState != previousState, (totMic1 + totMic2) / 2, System.nanoTime())
+							&& !sleepBetweenBursts(session)) {
+						break;
+					}
+				}
+			}
+		}
+	}
 
-        //Choose model for native detection profile
-        
-        final int model;
-        
-        if (android.os.Build.MODEL.equals("C6606")) { //Xperia Z, model = 0
-        	model = 0;
-        	Log.d("WaterDetector", "Found Xperia Z");
-        }
-        else if (android.os.Build.MODEL.equals("C6902")) { //Xperia Z1, model = 1
-        	model = 1;
-        	Log.d("WaterDetector", "Found Xperia Z1");
-        }
-        else if (android.os.Build.MODEL.equals("C6916")) { //Xperia Z1s, model = 2
-        	model = 2;
-        	Log.d("WaterDetector", "Found Xperia Z1s");
-        }
-        else {
-        	model = 0;
-        	Log.d("WaterDetector", "Found Unknown device");
-        }
-        
-        createEngine(frames, model);
-	}
-	
-	/**
-	 * Set the event listener for water submersion events
+	
+	/**
+	 * The profile of this device in the default registry, or the fallback profile for unknown devices
+	 */
+	private static DeviceProfile profileForThisDevice() {
+		DeviceProfileRegistry registry = DeviceProfileRegistry.getDefault();
+		DeviceProfile profile = registry.findForThisDevice();
+		if (profile != null) {
+			Log.d("WaterDetector", "Found " + profile.getName());
+			return profile;
+		}
+		profile = registry.getFallback();
+		if (profile == null) {
+			throw new IllegalStateException("No profile for " + android.os.Build.BRAND + " " + android.os.Build.MODEL);
+		}
+		Log.w("WaterDetector", "Unknown device " + android.os.Build.MODEL + ", using the " + profile.getName() + " profile");
+		return profile;
+	}
+	
+	/**
+	 * @return The device profile providing the classifier weights and tuning of this detector
+	 */
+	public DeviceProfile getDeviceProfile() {
+		return profile;
+	}
+	
+	/**
+	 * @return The sample rate, frame size, window and channel layout of this detector
+	 */
+	public DetectorConfig getConfig() {
+		return config;
+	}
+	
+	/**
+	 * The baseline is what the features are normalised by. It is calibrated from the first windows after the
+	 * detector starts, and then follows the features while the device is confidently in air, as configured
+	 * by the device profile. It is kept across onPause and onResume.
+	 * @return Copy of the Decision.FEATURE_COUNT values of the current baseline, for example to save with the
+	 * profile name and restore with setBaseline, or null while calibrating
+	 */
+	public float[] getBaseline() {
+		synchronized (baselineLock) {
+			return baseline != null ? baseline.clone() : null;
+		}
+	}
+	
+	/**
+	 * Restore a saved baseline, so decisions start with the first window instead of after the warm-up
+	 * of about two seconds. Applied before the next frame is processed, or when the detector resumes.
+	 * @param values Decision.FEATURE_COUNT values returned by getBaseline of a detector with the same profile
+	 */
+	public void setBaseline(float[] values) {
+		if (values == null || values.length != Decision.FEATURE_COUNT) {
+			throw new IllegalArgumentException("Expected " + Decision.FEATURE_COUNT + " baseline values");
+		}
+		synchronized (baselineLock) {
+			baseline = values.clone();
+			baselineRequest = values.clone();
+			baselineRequested = true;
+		}
+	}
+	
+	/**
+	 * Discard the baseline, for example when it was calibrated underwater or in a loud place.
+	 * The detector calibrates a new one from the next windows and makes no decisions until then.
+	 */
+	public void resetBaseline() {
+		synchronized (baselineLock) {
+			baseline = null;
+			baselineRequest = null;
+			baselineRequested = true;
+		}
+	}
+	
+	/**
+	 * Hand a restored baseline or a reset to the engine, on the detection thread
+	 */
+	private void applyBaselineRequest() {
+		synchronized (baselineLock) {
+			if (baselineRequest != null) {
+				engine.setBaseline(baselineRequest);
+			}
+			else {
+				engine.resetBaseline();
+			}
+			baselineRequest = null;
+			baselineRequested = false;
+		}
+	}
+	
+	/**
+	 * Hand the feature engine selected by setFeatureEngine to the engine, on the detection thread
+	 */
+	private void applyFeatureEngine() {
+		int requested = featureEngine;
+		if (requested != appliedFeatureEngine) {
+			appliedFeatureEngine = requested;
+			if (nativeAudioActive) {
+				//The engine belongs to the audio thread
+				nativeAudio.setFeatureEngine(requested);
+			}
+			else {
+				engine.setFeatureEngine(requested);
+			}
+		}
+	}
+	
+	/**
+	 * Keep the baseline of the last decision for getBaseline, on the detection thread
+	 */
+	private void publishBaseline() {
+		synchronized (baselineLock) {
+			if (baselineRequested) {
+				//Superseded by a request that is not applied yet
+				return;
+			}
+			if (baseline == null) {
+				baseline = new float[Decision.FEATURE_COUNT];
+			}
+			for (int i = 0; i < baseline.length; i++) {
+				baseline[i] = decision.getBaseline(i);
+			}
+		}
+	}
+	
+	/**
+	 * Set the event listener for water submersion events, called on the main thread
 	 * @param listener The WaterEventListener to act on submersion events
 	 */
 	public void setWaterEventListener(WaterEventListener listener) {
-		this.listener = listener;
+		setWaterEventListener(listener, new Handler(Looper.getMainLooper()));
+	}
+	
+	/**
+	 * Set the event listener for water submersion events, called on the thread of the given handler
+	 * @param listener The WaterEventListener to act on submersion events
+	 * @param handler The handler to post the events to
+	 */
+	public void setWaterEventListener(WaterEventListener listener, final Handler handler) {
+		setWaterEventListener(listener, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				if (!handler.post(command)) {
+					throw new RejectedExecutionException("Looper exiting");
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Set the event listener for water submersion events, called by the given executor.
+	 * The detection thread never waits for the listener: if the state changes again before an event has been
+	 * delivered, only the latest state is delivered.
+	 * @param listener The WaterEventListener to act on submersion events
+	 * @param executor Runs the listener, must run one event at a time and must not block when given an event
+	 */
+	public void setWaterEventListener(WaterEventListener listener, Executor executor) {
+		dispatcher.setListener(listener, executor);
+	}
+	
+	/**
+	 * Set a listener for the details of every classifier decision, called on the detection thread.
+	 * Unlike WaterEventListener it is called for each window, whether the state changes or not.
+	 * @param listener The DecisionListener, or null to remove it
+	 */
+	public void setDecisionListener(DecisionListener listener) {
+		decisionListener = listener;
+	}
+	
+	/**
+	 * @return Number of submersion events merged into a later event or skipped because they repeated the last one
+	 */
+	public long getCoalescedEventCount() {
+		return metrics.coalescedEvents.get();
+	}
+	
+	/**
+	 * @return Number of submersion events lost because the executor rejected them
+	 */
+	public long getDroppedEventCount() {
+		return metrics.droppedEvents.get();
+	}
+	
+	/**
+	 * Start recording the decision of every window into a trace file, for example to analyse a false submersion
+	 * reported from the field with FeatureTraceReader. Each record takes 96 bytes and is copied into a memory mapping
+	 * of the file on the detection thread, without allocating or waiting for the disk.
+	 * Decisions made by the native audio engine are not recorded.
+	 * @param file The trace file, overwritten if it exists
+	 * @param maxRecords Number of windows kept, older windows are overwritten
+	 * @throws IOException If the file can't be created
+	 */
+	public void startFeatureTrace(File file, int maxRecords) throws IOException {
+		FeatureTraceRecorder trace = new FeatureTraceRecorder(file, maxRecords, profile.getName());
+		stopFeatureTrace();
+		featureTrace = trace;
+	}
+	
+	/**
+	 * Stop recording the trace started by startFeatureTrace, writing it back to the file
+	 */
+	public void stopFeatureTrace() {
+		FeatureTraceRecorder trace = featureTrace;
+		featureTrace = null;
+		if (trace != null) {
+			trace.close();
+		}
+	}
+	
+	/**
+	 * Get the live metrics of this detector, for example to export a snapshot to telemetry
+	 * @return The metrics, updated while the detector runs
+	 */
+	public DetectorMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Set how long a new submersion state must be observed before it is reported.
+	 * Decisions are made every hop, so the times are rounded up to whole hops.
+	 * @param submergeMs Time classified as underwater before reporting submersion
+	 * @param surfaceMs Time classified as in air before reporting surfacing
+	 */
+	public void setHysteresis(int submergeMs, int surfaceMs) {
+		uwRequired = decisionsFor(submergeMs);
+		airRequired = decisionsFor(surfaceMs);
+	}
+	
+	/**
+	 * Number of consecutive decisions covering the given time, at least one
+	 */
+	private int decisionsFor(int ms) {
+		double hopMs = config.getHopMs();
+		return Math.max(1, (int)Math.ceil(ms / hopMs));
+	}
+	
+	/**
+	 * Select the algorithm used to compute the spectral features.
+	 * The FFT and Goertzel engines produce the same features within floating point tolerance and cost about the same,
+	 * which one is faster depends on the CPU (see jni/benchmark/FeatureBenchmark). The features of the fixed-point
+	 * engine differ by less than 0.001, and it avoids floating point arithmetic for every frame, which is much cheaper
+	 * on CPUs without an FPU. Applied before the next frame is processed, or when the detector resumes.
+	 * @param engine FEATURE_ENGINE_FFT (default), FEATURE_ENGINE_GOERTZEL or FEATURE_ENGINE_FIXED_POINT
+	 */
+	public void setFeatureEngine(int engine) {
+		if (engine != FEATURE_ENGINE_FFT && engine != FEATURE_ENGINE_GOERTZEL && engine != FEATURE_ENGINE_FIXED_POINT) {
+			throw new IllegalArgumentException("Unknown feature engine " + engine);
+		}
+		featureEngine = engine;
+		
+		//Native audio has no Java loop polling for it, the idle worker passes it on
+		if (nativeAudioEnabled && !worker.isShutdown()) {
+			try {
+				worker.execute(new Runnable() {
+					@Override
+					public void run() {
+						applyFeatureEngine();
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				//Destroyed meanwhile
+			}
+		}
+	}
+	
+	/**
+	 * Enable the duty-cycled low power mode, or return to continuous detection.
+	 * Takes effect on the next call to onResume.
+	 * @param cycle The listening and sleeping periods, null for continuous detection (default)
+	 */
+	public void setDutyCycle(DutyCycle cycle) {
+		dutyCycle = cycle;
+	}
+	
+	/**
+	 * Get the fraction of the time since the last onResume that the speaker and microphones were on
+	 * @return Effective duty cycle between 0 and 1, always 1 for continuous detection
+	 */
+	public float getEffectiveDutyCycle() {
+		DutyCycleScheduler current = scheduler;
+		return current != null ? current.getDutyCycle(System.nanoTime()) : 1.f;
+	}
+	
+	/**
+	 * Queue as much of the tone as the next frame records, continuing where the last chunk ended.
+	 * Recording and playback run at the same rate, so the sink stays as far ahead as the first tone written by startTone.
+	 */
+	private void writeTone(Session session) {
+		int remaining = buffer.capacity() / 2;
+		while (remaining > 0) {
+			int length = Math.min(remaining, playbackTone.length - session.toneOffset);
+			session.sink.write(playbackTone, session.toneOffset, length);
+			session.toneOffset = (session.toneOffset + length) % playbackTone.length;
+			remaining -= length;
+		}
+	}
+	
+	/**
+	 * Start the tone sink, giving a sink that does not loop the whole tone to play first
+	 * @return True if the sink started
+	 */
+	private boolean startTone(Session session) {
+		if (!session.sink.start(playbackTone)) {
+			return false;
+		}
+		if (!session.sink.isLooping() && playbackTone.length > 0) {
+			session.sink.write(playbackTone, 0, playbackTone.length);
+			session.toneOffset = 0;
+		}
+		return true;
+	}
+	
+	/**
+	 * Wait READ_ERROR_BACKOFF_MS after a failed read, or until the session is paused, on the worker
+	 */
+	private void backOff(Session session) {
+		synchronized (burstLock) {
+			if (session.running) {
+				try {
+					burstLock.wait(READ_ERROR_BACKOFF_MS);
+				} catch (InterruptedException e) {
+					session.running = false;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Stop the audio for the current off period and restart it, on the worker
+	 * @return True if recording resumed, False if the session was paused or the audio failed to restart
+	 */
+	private boolean sleepBetweenBursts(Session session) {
+		long end = System.nanoTime() + scheduler.getOffMs() * 1000000L;
+		session.source.stop();
+		if (session.sink != null) {
+			session.sink.stop();
+		}
+		
+		synchronized (burstLock) {
+			try {
+				long remaining;
+				while (session.running && (remaining = end - System.nanoTime()) > 0) {
+					burstLock.wait(Math.max(1, remaining / 1000000L));
+				}
+			} catch (InterruptedException e) {
+				return false;
+			}
+			if (!session.running) {
+				return false;
+			}
+		}
+		
+		if (!session.source.start()) {
+			Log.e("WaterDetector", "Audio source failed to restart");
+			dispatcher.postError();
+			return false;
+		}
+		if (session.sink != null && !startTone(session)) {
+			Log.e("WaterDetector", "Tone sink failed to restart");
+			dispatcher.postError();
+			return false;
+		}
+		//The window would otherwise mix audio from before and after the gap
+		engine.restartWindow();
+		scheduler.onWake(System.nanoTime());
+		return true;
+	}
+	
+	/**
+	 * Keep the speaker, microphones and worker thread ready between onPause and onResume, for apps that pause
+	 * and resume often. The worker then stops the audio objects created by onResume(Context) after onPause instead
+	 * of releasing them, and the idle worker is kept for STANDBY_KEEP_ALIVE_MS. The baseline is kept in either mode,
+	 * so with warm standby the first decision after resuming follows one detection window. The objects are released
+	 * by onDestroy or when warm standby is turned off. See DetectorMetrics.Snapshot.resumeLatencyMs.
+	 * @param enabled True to keep the audio objects and worker, False to release them on pause (default)
+	 */
+	public void setWarmStandby(boolean enabled) {
+		warmStandby = enabled;
+		worker.setKeepAliveTime(enabled ? STANDBY_KEEP_ALIVE_MS : 0, TimeUnit.MILLISECONDS);
+		if (!enabled && !worker.isShutdown()) {
+			worker.execute(new Runnable() {
+				@Override
+				public void run() {
+					releaseStandby();
+					if (!nativeAudioActive) {
+						releaseNativeAudio();
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Play the test tone and record through OpenSL ES, running the detection in the native audio callback instead
+	 * of on the Java worker. Java code only runs when the reported state changes, which removes the Java
+	 * scheduling from the path between recording and decision. Takes effect on the next call to onResume(Context),
+	 * which falls back to the Java audio for duty-cycled detectors or if the native audio is unavailable.
+	 * While the native audio runs, DecisionListener is not called, the per frame metrics are not updated,
+	 * and setBaseline and resetBaseline take effect on the next resume. setFeatureEngine is passed to the audio thread,
+	 * which applies it between frames.
+	 * @param enabled True to use the native audio, False for the Java audio (default)
+	 */
+	public void setNativeAudio(boolean enabled) {
+		nativeAudioEnabled = enabled;
 	}
 	
 	/**
-	 * Resume recording of input audio for processing and resume test tone generation
+	 * @return True if the native library was built with the OpenSL ES audio used by setNativeAudio
+	 */
+	public static boolean isNativeAudioAvailable() {
+		return NativeAudio.isAvailable();
+	}
+	
+	/**
+	 * Resume recording of input audio for processing and resume test tone generation.
+	 * Returns at once, the audio is started by the worker after the previous session has stopped.
 	 * @param context The Android context of the application using the water detector
 	 */
 	public void onResume(Context context) {
+		long start = System.nanoTime();
 		AudioManager mAudioManager = (AudioManager)context.getSystemService(Context.AUDIO_SERVICE);
-		mAudioManager.setStreamVolume(AudioManager.STREAM_MUSIC, mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC), 0);
+		int maxVolume = mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
+		if (mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC) != maxVolume) {
+			mAudioManager.setStreamVolume(AudioManager.STREAM_MUSIC, maxVolume, 0);
+		}
+		
+		startSession(new Session(null, null, true, nativeAudioEnabled && dutyCycle == null, start));
+	}
+	
+	/**
+	 * Resume detection on audio from the given source. The source and sink are stopped and released after onPause.
+	 * @param source The audio to analyse, 16 bit stereo at the sample rate and in the channel layout of the configuration
+	 * @param sink The sink playing the test tone, or null if the tone is played elsewhere
+	 */
+	public void onResume(AudioSource source, ToneSink sink) {
+		if (source.getSampleRate() != sampleRateInHz) {
+			throw new IllegalArgumentException("Unsupported sample rate " + source.getSampleRate());
+		}
+		startSession(new Session(source, sink, false, false, System.nanoTime()));
+	}
+	
+	/**
+	 * Queue a session on the worker, pausing the current one first
+	 */
+	private void startSession(Session next) {
+		if (session != null) {
+			onPause();
+		}
+		session = next;
+		active = true;
+		worker.execute(next);
+		metrics.resumeCall.record((System.nanoTime() - next.startNanos) / 1000L);
+	}
+	
+	/**
+	 * Start the audio of a session and run the detection until it is paused, on the worker
+	 */
+	private void runSession(Session session) {
+		if (!session.running) {
+			//Paused before it started
+			releaseAudio(session);
+			return;
+		}
+		
+		if (session.tryNativeAudio) {
+			if (NativeAudio.isAvailable() && resumeNative()) {
+				return;
+			}
+			Log.w("WaterDetector", "Native audio unavailable, using AudioRecord");
+		}
 		
-		audioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, sampleRateInHz, AudioFormat.CHANNEL_IN_STEREO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
-		audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRateInHz, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, playbackTone.length, AudioTrack.MODE_STREAM);
+		if (session.ownsAudio) {
+			session.source = standbySource;
+			session.sink = standbySink;
+			standbySource = null;
+			standbySink = null;
+			if (session.source == null) {
+				session.source = new AudioRecordSource(sampleRateInHz, config.getRecordBufferFrames());
+				session.sink = new AudioTrackToneSink(sampleRateInHz);
+			}
+		}
+		else {
+			releaseStandby();
+		}
 		
-		if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED 
-				&& audioTrack.getState() == AudioTrack.STATE_INITIALIZED) {
-			audioRecord.startRecording();
-			active = true;
+		if (!session.source.start() || (session.sink != null && !startTone(session))) {
+			Log.e("WaterDetector", "Audio failed to start");
+			dispatcher.postError();
+			releaseAudio(session);
+			return;
+		}
 		
-			audioTrack.play();
-			
-			toneThread = new Thread(toneGenRunnable);
-			toneThread.start();
-			
-			detectionThread = new Thread(detectionRunnable);
-			detectionThread.start();
+		reportedState = -1;
+		dispatcher.reset();
+		if (session.cycle != null) {
+			DutyCycleScheduler newScheduler = new DutyCycleScheduler(session.cycle);
+			newScheduler.start(System.nanoTime());
+			scheduler = newScheduler;
 		}
 		else {
-			audioRecord.release();
-			audioTrack.release();
+			scheduler = null;
+		}
+		//The window would otherwise mix audio from before and after the pause
+		applyFeatureEngine();
+		engine.restartWindow();
+		resumeNanos = session.startNanos;
+		awaitingFirstDecision = true;
+		
+		try {
+			detect(session);
+		}
+		finally {
+			stopAudio(session);
 		}
 	}
 	
 	/**
-	 * Stop recording of input audio for processing and stop test tone generation
+	 * Start the native audio, created on first use, on the worker
+	 * @return True if it started
+	 */
+	private boolean resumeNative() {
+		if (nativeAudio == null) {
+			nativeAudio = NativeAudio.open(engine, sampleRateInHz, playbackTone, new NativeAudio.StateListener() {
+				@Override
+				public void onStateChange(boolean underWater) {
+					if (reportedState != -1) {
+						metrics.transitions.incrementAndGet();
+					}
+					reportedState = underWater ? 1 : 0;
+					dispatcher.post(underWater);
+				}
+			});
+			if (nativeAudio == null) {
+				return false;
+			}
+		}
+		
+		//The engine belongs to the audio thread once started
+		if (baselineRequested) {
+			applyBaselineRequest();
+		}
+		applyFeatureEngine();
+		engine.restartWindow();
+		reportedState = -1;
+		dispatcher.reset();
+		scheduler = null;
+		if (!nativeAudio.start(uwRequired, airRequired)) {
+			nativeAudio.release();
+			nativeAudio = null;
+			return false;
+		}
+		nativeAudioActive = true;
+		return true;
+	}
+	
+	/**
+	 * Stop recording of input audio for processing and stop test tone generation.
+	 * Returns at once, the worker stops and releases the audio, or keeps it in warm standby.
 	 */
 	public void onPause() {
+		Session paused = session;
+		if (paused == null) {
+			return;
+		}
+		session = null;
 		active = false;
-		try {
-			if (toneThread != null) {
-				toneThread.join();
+		
+		synchronized (burstLock) {
+			paused.running = false;
+			burstLock.notifyAll();
+		}
+		//Runs once the session has left the detection loop
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (nativeAudioActive) {
+					pauseNative();
+				}
 			}
-			
-			if (detectionThread != null) {
-				detectionThread.join();
+		});
+	}
+	
+	/**
+	 * Stop the audio of a session that left the detection loop, keeping it in warm standby, on the worker
+	 */
+	private void stopAudio(Session session) {
+		if (warmStandby && session.ownsAudio) {
+			session.source.stop();
+			if (session.sink != null) {
+				session.sink.stop();
 			}
-			
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			standbySource = session.source;
+			standbySink = session.sink;
 		}
+		else {
+			releaseAudio(session);
+		}
+		session.source = null;
+		session.sink = null;
+	}
+	
+	/**
+	 * Stop the native audio, keeping it in warm standby, on the worker
+	 */
+	private void pauseNative() {
+		nativeAudio.stop();
+		nativeAudioActive = false;
 		
-		if (audioRecord != null) {
-			audioRecord.stop();
-			audioRecord.release();
-			audioRecord = null;
+		//The audio thread no longer uses the engine, keep its last baseline for getBaseline
+		engine.getDecision(decision.values);
+		if (!Float.isNaN(decision.getMargin())) {
+			publishBaseline();
+		}
+		if (!warmStandby) {
+			releaseNativeAudio();
+		}
+	}
+	
+	/**
+	 * Free the native audio
+	 */
+	private void releaseNativeAudio() {
+		if (nativeAudio != null) {
+			nativeAudio.release();
+			nativeAudio = null;
+		}
+	}
+	
+	/**
+	 * Stop and release the audio source and tone sink of a session
+	 */
+	private void releaseAudio(Session session) {
+		if (session.source != null) {
+			session.source.stop();
+			session.source.release();
+			session.source = null;
 		}
 		
-		if (audioTrack != null) {
-			audioTrack.stop();
-			audioTrack.release();
-			audioTrack = null;
+		if (session.sink != null) {
+			session.sink.stop();
+			session.sink.release();
+			session.sink = null;
 		}
 	}
 	
 	/**
-	 * Free native resources
+	 * Release the audio objects kept in warm standby
 	 */
-	public void onDestroy() {
-		shutdown();
+	private void releaseStandby() {
+		if (standbySource != null) {
+			standbySource.release();
+			standbySource = null;
+		}
+		
+		if (standbySink != null) {
+			standbySink.release();
+			standbySink = null;
+		}
 	}
 	
 	/**
-	 * Native method for allocating resources
-	 * @param frames Number of spectrogram frames to use in the detector
-	 * @param model Phone model configuration to use. 0: Xperia Z, 1: Xperia Z1, 2: Xperia Z1s
+	 * Free native resources. Stops detection first if it is still running, further calls have no effect.
+	 * Returns at once, the worker frees the resources once the last session has stopped.
 	 */
-    private static native void createEngine(int frames, int model);
-    
-    /**
-     * Native method for freeing resources
-     */
-    private static native void shutdown();
-
-    /**
-     * Native method for building the internal spectrogram from input data
-     * @param arr1 Samples recorded from first microphone
-     * @param arr2 Samples recorded from second microphone
-     * @return True if the detector can be polled for underwater state, False otherwise
-     */
-    private static native boolean buildSpectrogram(float[] arr1, float[] arr2);
-    
-    /**
-     * Test for the device being underwater.
-     * @param amp1 Average of the absolute values of samples recorded from first microphone
-     * @param amp2 Average of the absolute values of samples recorded from second microphone
-     * @return True if the device is probably underwater, False otherwise
-     */
-    private static native boolean isUnderWater(float amp1, float amp2);
-	
-    /** Load jni .so on initialization */
-    static {
-         System.loadLibrary("WaterDetection");
-    }
+	public void onDestroy() {
+		if (active) {
+			onPause();
+		}
+		stopFeatureTrace();
+		if (worker.isShutdown()) {
+			return;
+		}
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				releaseStandby();
+				releaseNativeAudio();
+				engine.release();
+			}
+		});
+		worker.shutdown();
+	}
 }
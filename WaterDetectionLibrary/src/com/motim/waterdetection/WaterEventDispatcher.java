@@ -0,0 +1,160 @@
+// Water Detection Library
+// Copyright (c) 2014, Motim Technologies Ltd.
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification, 
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this 
+// list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice, 
+// this list of conditions and the following disclaimer in the documentation and/or 
+// other materials provided with the distribution.
+// 
+// 3. Neither the name of the copyright holder nor the names of its contributors 
+// may be used to endorse or promote products derived from this software without 
+// specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.motim.waterdetection;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.motim.waterdetection.WaterDetector.WaterErrorListener;
+import com.motim.waterdetection.WaterDetector.WaterEventListener;
+
+/**
+ * WaterEventDispatcher hands state changes from the detection thread to the listener on an executor,
+ * without ever blocking the detection thread. Only the latest state is kept: a change posted while an
+ * earlier one still waits for delivery replaces it, and a delivery repeating the last delivered state is skipped.
+ * Audio errors are delivered after the pending state, to listeners implementing WaterErrorListener.
+ * There must be a single posting thread, and the executor must run deliveries one at a time.
+ */
+final class WaterEventDispatcher {
+	private static final int NONE = -1;
+	
+	private volatile WaterEventListener listener;
+	private volatile Executor executor;
+	
+	//State waiting for delivery, and the state the listener saw last, NONE or 0 (in air) / 1 (underwater)
+	private final AtomicInteger pending = new AtomicInteger(NONE);
+	private final AtomicInteger delivered = new AtomicInteger(NONE);
+	//True while an audio error waits for delivery
+	private final AtomicBoolean errorPending = new AtomicBoolean(false);
+	//True while a delivery is queued on the executor
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	
+	//Coalesced and dropped events and the delivery latency are counted here
+	private final DetectorMetrics metrics;
+	private volatile long postedNanos;
+	
+	private final Runnable delivery = new Runnable() {
+		@Override
+		public void run() {
+			deliver();
+		}
+	};
+	
+	WaterEventDispatcher(DetectorMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * @param listener Receives the state changes, null to stop delivering them
+	 * @param executor Runs the listener
+	 */
+	void setListener(WaterEventListener listener, Executor executor) {
+		this.executor = executor;
+		this.listener = listener;
+	}
+	
+	/**
+	 * Forget the last delivered state, so the next posted state is delivered even if it is the same
+	 */
+	void reset() {
+		delivered.set(NONE);
+	}
+	
+	/**
+	 * Queue a state change for delivery. Called by the detection thread, never blocks on the listener.
+	 * @param isSubmerged The new state
+	 */
+	void post(boolean isSubmerged) {
+		if (listener == null) {
+			return;
+		}
+		
+		postedNanos = System.nanoTime();
+		if (pending.getAndSet(isSubmerged ? 1 : 0) != NONE) {
+			metrics.coalescedEvents.incrementAndGet();
+		}
+		
+		schedule();
+	}
+	
+	/**
+	 * Queue an audio error for delivery, after any state still waiting. Called by the detection thread.
+	 */
+	void postError() {
+		if (listener == null) {
+			return;
+		}
+		
+		errorPending.set(true);
+		schedule();
+	}
+	
+	private void schedule() {
+		//A delivery already queued will pick up the new state or error
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(delivery);
+			} catch (RejectedExecutionException e) {
+				scheduled.set(false);
+				if (pending.getAndSet(NONE) != NONE) {
+					metrics.droppedEvents.incrementAndGet();
+				}
+				if (errorPending.getAndSet(false)) {
+					metrics.droppedEvents.incrementAndGet();
+				}
+			}
+		}
+	}
+	
+	private void deliver() {
+		//Cleared first, so a state posted from now on schedules another delivery
+		scheduled.set(false);
+		
+		WaterEventListener target = listener;
+		int state = pending.getAndSet(NONE);
+		if (state != NONE) {
+			if (delivered.getAndSet(state) == state) {
+				metrics.coalescedEvents.incrementAndGet();
+			}
+			else {
+				metrics.deliveryLatency.record((System.nanoTime() - postedNanos) / 1000L);
+				if (target != null) {
+					target.onWaterEvent(state == 1);
+				}
+			}
+		}
+		
+		if (errorPending.getAndSet(false) && target instanceof WaterErrorListener) {
+			((WaterErrorListener) target).onAudioError();
+		}
+	}
+}
@@ -33,20 +33,20 @@ package com.motim.waterdetection;
  * XperiaDetector detects if a device is an Xperia phone suitable for submersion
  */
 public class XperiaDetector {
-	private static String[] validModels = {"C6606", "C6916", "C6902", "mmm45i7lmieuoiu"};
-	
 	/**
 	 * Detects if the device is a supported Xperia devices
-	 * @return True if the device is supported, False otherwise
+	 * @return True if the device is a Sony device with a profile in the default DeviceProfileRegistry, False otherwise
 	 */
 	public static boolean isXperiaDevice() {
-		if (android.os.Build.BRAND.equals("Sony")) {
-			for (String model: validModels) {
-				if (model.equals(android.os.Build.MODEL)) {
-					return true;
-				}
-			}
-		}
-		return false;
+		return android.os.Build.BRAND.equals("Sony") && isSupportedDevice();
+	}
+	
+	/**
+	 * Detects if the device is supported, whatever its brand
+	 * @return True if the device has a profile in the default DeviceProfileRegistry, including profiles
+	 * registered at runtime, False otherwise
+	 */
+	public static boolean isSupportedDevice() {
+		return DeviceProfileRegistry.getDefault().findForThisDevice() != null;
 	}
 }